@@ -6,10 +6,15 @@ import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import androidx.appcompat.app.AppCompatDelegate;
 import androidx.multidex.MultiDexApplication;
+import com.nkanaev.comics.managers.DecodeScheduler;
+import com.nkanaev.comics.managers.LocalComicHandler;
+import com.nkanaev.comics.managers.LocalCoverHandler;
+import com.squareup.picasso.Picasso;
 
 
 public class MainApplication extends MultiDexApplication {
     private static Application instance;
+    private static Picasso mPicasso = null;
 
     @Override
     public void onCreate() {
@@ -34,6 +39,20 @@ public class MainApplication extends MultiDexApplication {
         return instance.getApplicationContext();
     }
 
+    // one Picasso for covers and pages, decodes are scheduled by DecodeScheduler
+    public synchronized static Picasso getPicasso() {
+        if (mPicasso == null) {
+            mPicasso = new Picasso.Builder(getAppContext())
+                    .executor(DecodeScheduler.getInstance().getExecutor())
+                    .addRequestHandler(new LocalCoverHandler(getAppContext()))
+                    .addRequestHandler(new LocalComicHandler.Dispatcher())
+                    .loggingEnabled(BuildConfig.DEBUG)
+                    .indicatorsEnabled(BuildConfig.DEBUG)
+                    .build();
+        }
+        return mPicasso;
+    }
+
     public static SharedPreferences getPreferences() {
         return instance.getSharedPreferences(Constants.SETTINGS_NAME, 0);
     }
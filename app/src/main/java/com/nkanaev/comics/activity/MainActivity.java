@@ -15,13 +15,13 @@ import androidx.fragment.app.Fragment;
 import androidx.fragment.app.FragmentManager;
 import com.google.android.material.navigation.NavigationView;
 import com.google.android.material.navigation.NavigationView.OnNavigationItemSelectedListener;
+import com.nkanaev.comics.MainApplication;
 import com.nkanaev.comics.R;
 import com.nkanaev.comics.fragment.AboutFragment;
 import com.nkanaev.comics.fragment.BrowserFragment;
 import com.nkanaev.comics.fragment.ThumbnailBrowserFragment;
 import com.nkanaev.comics.fragment.LibraryFragment;
 import com.nkanaev.comics.fragment.PreferencesFragment;
-import com.nkanaev.comics.managers.LocalCoverHandler;
 import com.nkanaev.comics.managers.Scanner;
 import com.nkanaev.comics.managers.Utils;
 import com.nkanaev.comics.view.NavBGImageView;
@@ -66,9 +66,7 @@ public class MainActivity extends AppCompatActivity
             actionBar.setTitle("");
         }
 
-        mPicasso = new Picasso.Builder(this)
-                .addRequestHandler(new LocalCoverHandler(this))
-                .build();
+        mPicasso = MainApplication.getPicasso();
 
         NavigationView navigationView = (NavigationView) findViewById(R.id.navigation_view);
         setupNavigationView(navigationView);
@@ -13,6 +13,7 @@ import android.view.ViewGroup;
 import java.io.File;
 import java.util.List;
 
+import com.nkanaev.comics.MainApplication;
 import com.nkanaev.comics.R;
 import com.nkanaev.comics.managers.LocalCoverHandler;
 import com.nkanaev.comics.managers.Utils;
@@ -28,9 +29,7 @@ public class ThumbnailDirectoryAdapter extends DirectoryAdapter {
     public ThumbnailDirectoryAdapter(Context context, File currentDirectory, File[] subdirectories) {
         super(context, currentDirectory, subdirectories);
 
-        mPicasso = new Picasso.Builder(context)
-                .addRequestHandler(new LocalCoverHandler(context))
-                .build();
+        mPicasso = MainApplication.getPicasso();
 
         Storage storage = Storage.getStorage(mContext);
         List<Comic> comics = storage.listComics();
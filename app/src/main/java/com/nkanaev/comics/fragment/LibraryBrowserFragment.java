@@ -916,7 +916,7 @@ public class LibraryBrowserFragment extends Fragment
             if (viewHolder.getItemViewType() == ITEM_VIEW_TYPE_COMIC) {
                 Comic comic = getComicAtPosition(i);
                 ComicViewHolder holder = (ComicViewHolder) viewHolder;
-                holder.setupComic(comic);
+                holder.setupComic(comic, i);
             }
         }
 
@@ -952,13 +952,16 @@ public class LibraryBrowserFragment extends Fragment
             itemView.setOnClickListener(this);
         }
 
-        public void setupComic(Comic comic) {
+        public void setupComic(Comic comic, int position) {
             mComic = comic;
             Uri uri = LocalCoverHandler.getComicCoverUri(comic);
             //Long lastCacheStamp = mCache.get(uri);
             //if (lastCacheStamp != null && !lastCacheStamp.equals(mCacheStamp))
             //   mPicasso.invalidate(uri);
-            mPicasso.load(uri).into(mComicImageView);
+            boolean ahead = ((PreCachingGridLayoutManager) mComicListView.getLayoutManager()).isPrefetchPosition(position);
+            mPicasso.load(uri)
+                    .priority(ahead ? Picasso.Priority.LOW : Picasso.Priority.NORMAL)
+                    .into(mComicImageView);
            //mCache.put(uri, mCacheStamp);
 
             // reload comic (in case it was updated by the cover loading)
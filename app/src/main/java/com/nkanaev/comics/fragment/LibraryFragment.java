@@ -675,7 +675,10 @@ public class LibraryFragment extends Fragment
         public void setup(int position) {
             Comic comic = mComicsListManager.getComicAtIndex(position);
             Uri uri = LocalCoverHandler.getComicCoverUri(comic);
-            mPicasso.load(uri).into(groupImageView);
+            boolean ahead = ((PreCachingGridLayoutManager) mFolderListView.getLayoutManager()).isPrefetchPosition(position);
+            mPicasso.load(uri)
+                    .priority(ahead ? Picasso.Priority.LOW : Picasso.Priority.NORMAL)
+                    .into(groupImageView);
 
             String dirDisplay = mComicsListManager.getDirectoryDisplayAtIndex(position);
             tv.setText(dirDisplay);
@@ -8,6 +8,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -40,7 +41,10 @@ import com.nkanaev.comics.Constants;
 import com.nkanaev.comics.MainApplication;
 import com.nkanaev.comics.R;
 import com.nkanaev.comics.activity.ReaderActivity;
+import com.nkanaev.comics.managers.BitmapPool;
 import com.nkanaev.comics.managers.LocalComicHandler;
+import com.nkanaev.comics.managers.PagePrefetcher;
+import com.nkanaev.comics.managers.PageRegionDecoder;
 import com.nkanaev.comics.managers.Utils;
 import com.nkanaev.comics.model.Comic;
 import com.nkanaev.comics.model.Storage;
@@ -60,6 +64,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.lang.IllegalStateException;
+import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
@@ -101,6 +106,7 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
     private int mPageCount = 0;
     private Picasso mPicasso;
     private LocalComicHandler mComicHandler;
+    private PagePrefetcher mPrefetcher;
     private SparseArray<MyTarget> mTargets = new SparseArray<>();
     private HashMap<Integer,Integer> mRotations = new HashMap();
 
@@ -216,11 +222,36 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
                     return null;
                 }
 
+                @Override
+                public ByteBuffer getPageBuffer(int num) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public Bitmap getPageBitmap(int num) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+                    return null;
+                }
+
                 @Override
                 public Map getPageMetaData(int num) throws IOException {
                     return Collections.emptyMap();
                 }
 
+                @Override
+                public Point getPageDimensions(int num) throws IOException {
+                    return null;
+                }
+
+                @Override
+                public boolean canProbePages() throws IOException {
+                    return false;
+                }
+
                 @Override
                 public String getType() {
                     return "dummy";
@@ -245,12 +276,9 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
         }).start();
 
         // setup picasso
-        mComicHandler = new LocalComicHandler(mParser);
-        mPicasso = new Picasso.Builder(getActivity())
-                .loggingEnabled(BuildConfig.DEBUG)
-                .indicatorsEnabled(BuildConfig.DEBUG)
-                .addRequestHandler(mComicHandler)
-                .build();
+        mPrefetcher = new PagePrefetcher(getActivity(), mParser);
+        mComicHandler = new LocalComicHandler(mParser, mPrefetcher);
+        mPicasso = MainApplication.getPicasso();
 
         initGestureDetector();
 
@@ -477,8 +505,13 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
     public void onDestroy() {
         super.onDestroy();
 
-        mPicasso.shutdown();
+        mPrefetcher.shutdown();
+        // Picasso is shared, only drop our requests
+        mPicasso.cancelTag(getActivity());
+        mComicHandler.close();
         Utils.close(mParser);
+        // page sizes of the next book are anybody's guess
+        BitmapPool.getInstance().clear();
     }
 
     public void onDetach() {
@@ -593,6 +626,7 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
                 .toString();
         mPageNavTextView.setText(navText);
 
+        mPrefetcher.onPageSelected(newItem, mPageCount);
         updatePageImageInfo();
     }
 
@@ -717,18 +751,26 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
         @Override
         public void destroyItem(ViewGroup container, int position, Object object) {
             View layout = (View) object;
-            mPicasso.cancelRequest(mTargets.get(position));
+            MyTarget t = mTargets.get(position);
+            mPicasso.cancelRequest(t);
             mTargets.delete(position);
             container.removeView(layout);
 
             ImageView iv = (ImageView) layout.findViewById(R.id.pageImageView);
             Drawable drawable = iv.getDrawable();
-            if (drawable instanceof BitmapDrawable) {
-                BitmapDrawable bd = (BitmapDrawable) drawable;
-                Bitmap bm = bd.getBitmap();
-                if (bm != null) {
-                    bm.recycle();
-                }
+            Bitmap bm = null;
+            if (drawable instanceof BitmapDrawable)
+                bm = ((BitmapDrawable) drawable).getBitmap();
+            iv.setImageDrawable(null);
+
+            // unrotated pages go back to the prefetcher, flipping back won't decode them again
+            Integer degrees = t != null ? mRotations.get(t.page) : null;
+            if (t != null && t.page >= 0 && (degrees == null || degrees == 0)) {
+                mPrefetcher.release(t.page, bm);
+            } else {
+                if (t != null && t.page >= 0)
+                    mPrefetcher.release(t.page, null);
+                BitmapPool.getInstance().put(bm);
             }
         }
     }
@@ -740,6 +782,7 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
         } else {
             pos = mViewPager.getAdapter().getCount() - t.position - 1;
         }
+        t.page = pos;
 
         RequestCreator rc = mPicasso.load(mComicHandler.getPageUri(pos))
                 //.config(Bitmap.Config.RGB_565)
@@ -770,6 +813,8 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
         public WeakReference<View> mLayout;
         private Animation mProgressAnimation = null;
         public final int position;
+        // page index last requested, -1 until loaded
+        public int page = -1;
 
         public MyTarget(View layout, int position) {
             mLayout = new WeakReference<>(layout);
@@ -817,8 +862,12 @@ public class ReaderFragment extends Fragment implements View.OnTouchListener {
                 return;
 
             setVisibility(Show.PAGE);
-            ImageView iv = (ImageView) layout.findViewById(R.id.pageImageView);
+            PageImageView iv = (PageImageView) layout.findViewById(R.id.pageImageView);
             iv.setImageBitmap(bitmap);
+            // reduced (oversized) pages get detail by tiles, rotated ones don't line up
+            Integer degrees = mRotations.get(page);
+            if (degrees == null || degrees == 0)
+                iv.setTileSource(new PageRegionDecoder(mParser, page));
 
             if (getCurrentPage() - 1 == position)
                 updatePageImageInfo();
@@ -0,0 +1,114 @@
+package com.nkanaev.comics.managers;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import com.nkanaev.comics.MainApplication;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Page bitmaps the reader is done with, handed to BitmapFactory as inBitmap so
+ * flipping through a book doesn't allocate a fresh bitmap per page. Bucketed by
+ * allocation size, pages of a book mostly share one. Held below a byte limit,
+ * oldest go first, and emptied on memory pressure.
+ */
+public class BitmapPool implements ComponentCallbacks2 {
+    private static BitmapPool mInstance = null;
+
+    private final long mMaxBytes;
+    private final TreeMap<Integer, ArrayList<Bitmap>> mBuckets = new TreeMap<>();
+    // oldest first
+    private final LinkedList<Bitmap> mOrder = new LinkedList<>();
+    private long mUsed = 0;
+
+    public synchronized static BitmapPool getInstance() {
+        if (mInstance == null) {
+            Context context = MainApplication.getAppContext();
+            mInstance = new BitmapPool(1024L * Utils.getHeapSize(context) / 8);
+            context.registerComponentCallbacks(mInstance);
+        }
+        return mInstance;
+    }
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    // takes over the bitmap, recycles what can't be reused
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        int bytes = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() == null || bytes > mMaxBytes ||
+                (Utils.isOreoOrLater() && bitmap.getConfig() == Bitmap.Config.HARDWARE)) {
+            bitmap.recycle();
+            return;
+        }
+
+        ArrayList<Bitmap> bucket = mBuckets.get(bytes);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            mBuckets.put(bytes, bucket);
+        }
+        bucket.add(bitmap);
+        mOrder.add(bitmap);
+        mUsed += bytes;
+        trim(mMaxBytes);
+    }
+
+    // bitmap with room for bytes, wasting at most as much again, or null
+    public synchronized Bitmap get(long bytes) {
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE)
+            return null;
+        Map.Entry<Integer, ArrayList<Bitmap>> entry = mBuckets.ceilingEntry((int) bytes);
+        if (entry == null || entry.getKey() > 2 * bytes)
+            return null;
+
+        ArrayList<Bitmap> bucket = entry.getValue();
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        if (bucket.isEmpty())
+            mBuckets.remove(entry.getKey());
+        mOrder.remove(bitmap);
+        mUsed -= entry.getKey();
+        return bitmap;
+    }
+
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    private void trim(long maxBytes) {
+        while (mUsed > maxBytes && !mOrder.isEmpty()) {
+            Bitmap bitmap = mOrder.removeFirst();
+            int bytes = bitmap.getAllocationByteCount();
+            ArrayList<Bitmap> bucket = mBuckets.get(bytes);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty())
+                mBuckets.remove(bytes);
+            mUsed -= bytes;
+            bitmap.recycle();
+        }
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            trim(0);
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+            trim(mMaxBytes / 2);
+    }
+
+    @Override
+    public synchronized void onLowMemory() {
+        trim(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,78 @@
+package com.nkanaev.comics.managers;
+
+import com.nkanaev.comics.MainApplication;
+
+/**
+ * Admits concurrent decodes as long as their estimated memory use fits a
+ * shared byte budget. Background work is limited to half of it and yields
+ * to waiting foreground (visible page) requests.
+ */
+public class DecodeBudget {
+    private static DecodeBudget mInstance = null;
+
+    private final long mBudget;
+    private final int mMaxDecodes;
+    private long mUsed = 0;
+    private long mUsedBackground = 0;
+    private int mDecodes = 0;
+    private int mWaitingForeground = 0;
+
+    public synchronized static DecodeBudget getInstance() {
+        if (mInstance == null) {
+            long heapSize = 1024L * Utils.getHeapSize(MainApplication.getAppContext());
+            long budget = Math.max(Utils.bitmapMaxMemorySize(), heapSize / 2);
+            mInstance = new DecodeBudget(budget, Runtime.getRuntime().availableProcessors());
+        }
+        return mInstance;
+    }
+
+    public DecodeBudget(long budget, int maxDecodes) {
+        mBudget = budget;
+        mMaxDecodes = Math.max(1, maxDecodes);
+    }
+
+    // unknown (negative) or oversized requests wait until they can run alone
+    private long clamp(long bytes) {
+        return bytes < 0 || bytes > mBudget ? mBudget : bytes;
+    }
+
+    private boolean fits(long bytes, boolean foreground) {
+        if (!foreground) {
+            if (mWaitingForeground > 0)
+                return false;
+            if (mUsedBackground > 0 && mUsedBackground + bytes > mBudget / 2)
+                return false;
+        }
+        if (mDecodes == 0)
+            return true;
+        return mDecodes < mMaxDecodes && mUsed + bytes <= mBudget;
+    }
+
+    public synchronized void acquire(long bytes, boolean foreground) throws InterruptedException {
+        bytes = clamp(bytes);
+        if (foreground)
+            mWaitingForeground++;
+        try {
+            while (!fits(bytes, foreground))
+                wait();
+        } finally {
+            // background requests may go ahead now
+            if (foreground && --mWaitingForeground == 0)
+                notifyAll();
+        }
+        mUsed += bytes;
+        if (!foreground)
+            mUsedBackground += bytes;
+        mDecodes++;
+    }
+
+    // same values as given to acquire()
+    public synchronized void release(long bytes, boolean foreground) {
+        bytes = clamp(bytes);
+        mUsed -= bytes;
+        if (!foreground)
+            mUsedBackground -= bytes;
+        mDecodes--;
+        notifyAll();
+    }
+}
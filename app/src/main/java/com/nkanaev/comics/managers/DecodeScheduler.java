@@ -0,0 +1,189 @@
+package com.nkanaev.comics.managers;
+
+import android.os.Process;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+/**
+ * App wide gate for image decodes. Decodes wait for a slot in priority lanes,
+ * lower lanes first, the last slot is kept for the visible page. The number of
+ * slots follows core count and free heap. Lanes may be dynamic (e.g. a page
+ * becoming visible), they are re-evaluated whenever a slot frees or update()
+ * is called.
+ * getExecutor() runs the app's Picasso, requests cancelled while waiting for a
+ * slot leave without decoding.
+ */
+public class DecodeScheduler {
+    private static final String TAG = "DecodeScheduler";
+
+    public static final int LANE_VISIBLE_PAGE = 0;
+    public static final int LANE_ADJACENT_PAGE = 1;
+    public static final int LANE_VISIBLE_COVER = 2;
+    public static final int LANE_PREFETCH_COVER = 3;
+    public static final int LANE_BACKGROUND = 4;
+
+    // re-check free memory now and then, nobody notifies about it
+    private static final long RECHECK_MS = 250;
+
+    public interface Lane {
+        // called with the scheduler locked, keep it cheap and lock free
+        int getLane();
+    }
+
+    private static DecodeScheduler mInstance = null;
+    // task run by the current executor thread, if any
+    private static final ThreadLocal<Task> mCurrentTask = new ThreadLocal<>();
+
+    private final int mMaxSlots;
+    private final long mBytesPerSlot;
+    private final ExecutorService mExecutor;
+    private final ArrayList<Waiter> mWaiters = new ArrayList<>();
+    private int mRunning = 0;
+    private long mSequence = 0;
+
+    public synchronized static DecodeScheduler getInstance() {
+        if (mInstance == null) {
+            // a page a bit bigger than the screen per decode
+            long page = 4L * Utils.getMaxPageSize() * Utils.getMaxPageSize();
+            mInstance = new DecodeScheduler(Runtime.getRuntime().availableProcessors(), page);
+        }
+        return mInstance;
+    }
+
+    public DecodeScheduler(int maxSlots, long bytesPerSlot) {
+        mMaxSlots = Math.max(1, maxSlots);
+        mBytesPerSlot = Math.max(1, bytesPerSlot);
+        // more threads than slots, waiting low lanes must not block higher ones from queueing
+        int threads = mMaxSlots + 4;
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        }) {
+            @Override
+            protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+                return new Task<>(runnable, value);
+            }
+        };
+        ((ThreadPoolExecutor) mExecutor).allowCoreThreadTimeOut(true);
+    }
+
+    public ExecutorService getExecutor() {
+        return mExecutor;
+    }
+
+    private int slots(int lane) {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        int slots = (int) Math.max(1, Math.min(mMaxSlots, free / mBytesPerSlot));
+        if (lane != LANE_VISIBLE_PAGE && slots > 1)
+            slots--;
+        return slots;
+    }
+
+    public void acquire(final int lane) throws InterruptedIOException {
+        acquire(new Lane() {
+            @Override
+            public int getLane() {
+                return lane;
+            }
+        });
+    }
+
+    // blocks until the decode may run, call release() afterwards
+    public synchronized void acquire(Lane lane) throws InterruptedIOException {
+        Waiter waiter = new Waiter(lane, mSequence++);
+        mWaiters.add(waiter);
+        try {
+            while (!canRun(waiter)) {
+                if (isCancelled())
+                    throw new InterruptedIOException("decode cancelled");
+                wait(RECHECK_MS);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("decode interrupted");
+        } finally {
+            mWaiters.remove(waiter);
+            // next in line may go now
+            notifyAll();
+        }
+        mRunning++;
+    }
+
+    public synchronized void release() {
+        mRunning--;
+        notifyAll();
+    }
+
+    // dynamic lanes changed
+    public synchronized void update() {
+        notifyAll();
+    }
+
+    private boolean canRun(Waiter waiter) {
+        int lane = waiter.lane.getLane();
+        if (mRunning >= slots(lane))
+            return false;
+        for (Waiter other : mWaiters) {
+            if (other == waiter)
+                continue;
+            int otherLane = other.lane.getLane();
+            if (otherLane < lane || (otherLane == lane && other.sequence < waiter.sequence))
+                return false;
+        }
+        return true;
+    }
+
+    // request of the calling executor thread was cancelled (e.g. its view recycled)
+    public static boolean isCancelled() {
+        Task task = mCurrentTask.get();
+        return task != null && task.isCancelled();
+    }
+
+    private static class Waiter {
+        final Lane lane;
+        final long sequence;
+
+        Waiter(Lane lane, long sequence) {
+            this.lane = lane;
+            this.sequence = sequence;
+        }
+    }
+
+    // Picasso cancels w/o interrupting, waiters are woken to check for themselves
+    private class Task<T> extends FutureTask<T> {
+        Task(Runnable runnable, T value) {
+            super(runnable, value);
+        }
+
+        @Override
+        public void run() {
+            mCurrentTask.set(this);
+            try {
+                super.run();
+            } finally {
+                mCurrentTask.remove();
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled)
+                update();
+            return cancelled;
+        }
+    }
+}
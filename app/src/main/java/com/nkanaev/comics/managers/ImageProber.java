@@ -0,0 +1,248 @@
+package com.nkanaev.comics.managers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+/**
+ * Reads image type and dimensions from the file header only, without
+ * decoding or reading the whole image. Knows JPEG, PNG, GIF, WebP, BMP
+ * and JPEG 2000 (jp2 container or raw codestream). Where the header tells,
+ * single channel (gray) and alpha free (opaque) images are flagged too.
+ */
+public class ImageProber {
+    // mark limit callers should use to reuse the stream afterwards,
+    // jpeg SOF usually sits behind the exif block (thumbnail <64k)
+    public static final int MARK_LIMIT = 128 * 1024;
+    // covers all fixed position headers below
+    private static final int HEAD_SIZE = 32;
+
+    public static class Info {
+        public final String mime;
+        public final int width;
+        public final int height;
+        // false means unknown, a color header may still hold gray content
+        public final boolean gray;
+        public final boolean opaque;
+
+        Info(String mime, int width, int height, boolean gray, boolean opaque) {
+            this.mime = mime;
+            this.width = width;
+            this.height = height;
+            this.gray = gray;
+            this.opaque = opaque;
+        }
+    }
+
+    // null if format is unknown or header is broken
+    public static Info probe(InputStream in) throws IOException {
+        PushbackInputStream is = new PushbackInputStream(in, HEAD_SIZE);
+        byte[] h = new byte[HEAD_SIZE];
+        int n = read(is, h, HEAD_SIZE);
+        if (n > 0)
+            is.unread(h, 0, n);
+
+        try {
+            if (n >= 3 && u8(h, 0) == 0xFF && u8(h, 1) == 0xD8 && u8(h, 2) == 0xFF)
+                return probeJpeg(is);
+            if (n >= 26 && u8(h, 0) == 0x89 && startsWith(h, 1, "PNG\r\n\u001a\n") && startsWith(h, 12, "IHDR"))
+                return probePng(h);
+            if (n >= 10 && (startsWith(h, 0, "GIF87a") || startsWith(h, 0, "GIF89a")))
+                return info("image/gif", le16(h, 6), le16(h, 8));
+            if (n >= 30 && startsWith(h, 0, "RIFF") && startsWith(h, 8, "WEBP"))
+                return probeWebp(h);
+            if (n >= 26 && startsWith(h, 0, "BM"))
+                return probeBmp(h);
+            if (n >= 12 && be32(h, 0) == 12 && startsWith(h, 4, "jP  ") && be32(h, 8) == 0x0D0A870A)
+                return probeJp2(is);
+            if (n >= 16 && u8(h, 0) == 0xFF && u8(h, 1) == 0x4F && u8(h, 2) == 0xFF && u8(h, 3) == 0x51)
+                return probeJ2k(is);
+        } catch (EOFException e) {
+            // truncated header
+        }
+        return null;
+    }
+
+    private static Info probeJpeg(InputStream is) throws IOException {
+        skip(is, 2);
+        while (true) {
+            // markers may be padded with 0xFF fill bytes
+            int b = readU8(is);
+            if (b != 0xFF)
+                return null;
+            int marker;
+            while ((marker = readU8(is)) == 0xFF)
+                ;
+
+            // standalone markers w/o length
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8))
+                continue;
+            // end of image, start of scan before any frame header
+            if (marker == 0xD9 || marker == 0xDA)
+                return null;
+
+            int length = readU16(is);
+            if (length < 2)
+                return null;
+            // SOF0-15, except DHT, JPG and DAC
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                skip(is, 1);
+                int height = readU16(is);
+                int width = readU16(is);
+                int components = readU8(is);
+                return info("image/jpeg", width, height, components == 1, true);
+            }
+            skip(is, length - 2);
+        }
+    }
+
+    // IHDR color type: 0 gray, 2 rgb, 3 palette (maybe w/ tRNS), 4 gray+alpha, 6 rgba
+    private static Info probePng(byte[] h) {
+        int colorType = u8(h, 25);
+        return info("image/png", be32(h, 16), be32(h, 20),
+                colorType == 0 || colorType == 4, colorType == 0 || colorType == 2);
+    }
+
+    private static Info probeWebp(byte[] h) {
+        if (startsWith(h, 12, "VP8 ")) {
+            // frame tag, then start code 9d 01 2a
+            if (u8(h, 23) != 0x9D || u8(h, 24) != 0x01 || u8(h, 25) != 0x2A)
+                return null;
+            return info("image/webp", le16(h, 26) & 0x3FFF, le16(h, 28) & 0x3FFF, false, true);
+        }
+        if (startsWith(h, 12, "VP8L")) {
+            if (u8(h, 20) != 0x2F)
+                return null;
+            long bits = le32(h, 21) & 0xFFFFFFFFL;
+            // alpha_is_used hint follows the dimensions
+            return info("image/webp", (int) (bits & 0x3FFF) + 1, (int) ((bits >> 14) & 0x3FFF) + 1,
+                    false, (bits & (1L << 28)) == 0);
+        }
+        if (startsWith(h, 12, "VP8X"))
+            return info("image/webp", le24(h, 24) + 1, le24(h, 27) + 1, false, (u8(h, 20) & 0x10) == 0);
+        return null;
+    }
+
+    private static Info probeBmp(byte[] h) {
+        int dibSize = le32(h, 14);
+        // OS/2 core header has 16 bit dimensions
+        if (dibSize == 12)
+            return info("image/bmp", le16(h, 18), le16(h, 20), false, true);
+        // negative height marks top-down bitmaps, only 32 bit ones may carry alpha
+        return info("image/bmp", le32(h, 18), Math.abs(le32(h, 22)), false, le16(h, 28) < 32);
+    }
+
+    // boxes: 4 byte length, 4 byte type, ihdr lives in the jp2h super box
+    private static Info probeJp2(InputStream is) throws IOException {
+        skip(is, 12);
+        boolean inHeader = false;
+        while (true) {
+            long length = readU32(is);
+            int type = (int) readU32(is);
+            long headerSize = 8;
+            if (length == 1) {
+                length = (readU32(is) << 32) | readU32(is);
+                headerSize = 16;
+            }
+
+            if (type == 0x6A703268) { // jp2h
+                inHeader = true;
+                continue;
+            }
+            if (inHeader && type == 0x69686472) { // ihdr
+                int height = (int) readU32(is);
+                int width = (int) readU32(is);
+                return info("image/x-jp2", width, height);
+            }
+            // open ended box or header before its header box
+            if (length == 0 || inHeader || length < headerSize)
+                return null;
+            skip(is, length - headerSize);
+        }
+    }
+
+    // raw codestream, SIZ marker follows SOC
+    private static Info probeJ2k(InputStream is) throws IOException {
+        // SOC, SIZ, Lsiz, Rsiz
+        skip(is, 8);
+        long xsiz = readU32(is);
+        long ysiz = readU32(is);
+        long xosiz = readU32(is);
+        long yosiz = readU32(is);
+        return info("image/x-jp2", (int) (xsiz - xosiz), (int) (ysiz - yosiz));
+    }
+
+    private static Info info(String mime, int width, int height) {
+        return info(mime, width, height, false, false);
+    }
+
+    private static Info info(String mime, int width, int height, boolean gray, boolean opaque) {
+        if (width <= 0 || height <= 0)
+            return null;
+        return new Info(mime, width, height, gray, opaque);
+    }
+
+    private static int read(InputStream is, byte[] b, int length) throws IOException {
+        int total = 0, read;
+        while (total < length && (read = is.read(b, total, length - total)) != -1)
+            total += read;
+        return total;
+    }
+
+    private static void skip(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                // some streams refuse to skip, read instead
+                if (is.read() == -1)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static int readU8(InputStream is) throws IOException {
+        int b = is.read();
+        if (b == -1)
+            throw new EOFException();
+        return b;
+    }
+
+    private static int readU16(InputStream is) throws IOException {
+        return (readU8(is) << 8) | readU8(is);
+    }
+
+    private static long readU32(InputStream is) throws IOException {
+        return ((long) readU16(is) << 16) | readU16(is);
+    }
+
+    private static boolean startsWith(byte[] b, int offset, String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            if (b[offset + i] != (byte) ascii.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int u8(byte[] b, int offset) {
+        return b[offset] & 0xFF;
+    }
+
+    private static int le16(byte[] b, int offset) {
+        return u8(b, offset) | (u8(b, offset + 1) << 8);
+    }
+
+    private static int le24(byte[] b, int offset) {
+        return le16(b, offset) | (u8(b, offset + 2) << 16);
+    }
+
+    private static int le32(byte[] b, int offset) {
+        return le24(b, offset) | (u8(b, offset + 3) << 24);
+    }
+
+    private static int be32(byte[] b, int offset) {
+        return (u8(b, offset) << 24) | (u8(b, offset + 1) << 16) | (u8(b, offset + 2) << 8) | u8(b, offset + 3);
+    }
+}
@@ -2,6 +2,7 @@ package com.nkanaev.comics.managers;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.net.Uri;
 import android.util.Log;
 import com.nkanaev.comics.parsers.*;
@@ -11,14 +12,45 @@ import com.squareup.picasso.RequestHandler;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public class LocalComicHandler extends RequestHandler {
     private final static String HANDLER_URI = "localcomic";
+    // gray check: sample about this many pixels along the long side ...
+    private static final int GRAY_SAMPLE_SIZE = 128;
+    // ... allowing for jpeg chroma noise, scans and the odd colored spot
+    private static final int GRAY_MAX_CHROMA = 24;
+    private static final int GRAY_MAX_COLORED_PERMILLE = 5;
+    // open comics by id, the app wide Picasso finds them by uri authority
+    private static final HashMap<Integer, LocalComicHandler> mHandlers = new HashMap<>();
+    private static int mNextId = 0;
+
     private final Parser mParser;
+    private final PagePrefetcher mPrefetcher;
+    private final int mId;
 
     public LocalComicHandler(Parser parser) {
+        this(parser, null);
+    }
+
+    // prefetched pages are served from memory
+    public LocalComicHandler(Parser parser, PagePrefetcher prefetcher) {
         mParser = parser;
+        mPrefetcher = prefetcher;
+        synchronized (mHandlers) {
+            mId = mNextId++;
+            mHandlers.put(mId, this);
+        }
+    }
+
+    // page uris of this comic don't resolve anymore
+    public void close() {
+        synchronized (mHandlers) {
+            mHandlers.remove(mId);
+        }
     }
 
     @Override
@@ -29,54 +61,151 @@ public class LocalComicHandler extends RequestHandler {
     @Override
     public Result load(Request request, int networkPolicy) throws IOException {
         int pageNum = Integer.parseInt(request.uri.getFragment());
-        InputStream stream = mParser.getPage(pageNum);
-
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(stream, null, options);
-        Utils.close(stream);
-        int w = options.outWidth;
-        int h = options.outHeight;
-        String id = w+"x"+h;
-        int maxMemorySize = Utils.bitmapMaxMemorySize();
-
-        options = new BitmapFactory.Options();
+        // unsized requests are limited by the max bitmap memory only
+        int maxWidth = request.hasSize() ? request.targetWidth : 0;
+        int maxHeight = request.hasSize() ? request.targetHeight : 0;
         // dying on mangastrips with GL error, max texture size?
-        if (false && Utils.isOreoOrLater() && Math.max(w,h) <= Utils.glMaxTextureSize())
-            options.inPreferredConfig = Bitmap.Config.HARDWARE;
-        // assuming default 4byte Bitmap.Config.ARGB_8888
-        if (maxMemorySize > 0 && (long)w * h * 4 > maxMemorySize) {
-            // check if resample is needed assuming 4byte Bitmap.Config.ARGB_4444
-            int inSampleSize = 1;
-            while ((long)w * h * 4 > maxMemorySize) {
-                inSampleSize *= 2;
-                h /= 2;
-                w /= 2;
+        Bitmap.Config config = null;
+        if (false && Utils.isOreoOrLater())
+            config = Bitmap.Config.HARDWARE;
+
+        // prefetched pages are decoded just like unsized requests
+        if (mPrefetcher != null && !request.hasSize()) {
+            Bitmap prefetched = mPrefetcher.take(pageNum);
+            if (prefetched != null)
+                return new Result(prefetched, Picasso.LoadedFrom.MEMORY);
+        }
+
+        // the page on screen goes first, the ones next to it after
+        final int page = pageNum;
+        DecodeScheduler scheduler = DecodeScheduler.getInstance();
+        scheduler.acquire(new DecodeScheduler.Lane() {
+            @Override
+            public int getLane() {
+                int current = mPrefetcher != null ? mPrefetcher.getCurrentPage() : -1;
+                return current < 0 || current == page ?
+                        DecodeScheduler.LANE_VISIBLE_PAGE : DecodeScheduler.LANE_ADJACENT_PAGE;
             }
-            options.inSampleSize = inSampleSize;
-            Log.d("inSampleSize "+id, String.valueOf(inSampleSize));
+        });
+        // decoded once, straight to size, rendered pages (pdf) skip decoding altogether
+        Bitmap result;
+        try {
+            result = decodePage(mParser, pageNum, maxWidth, maxHeight, config);
+        } finally {
+            scheduler.release();
         }
+        if (result == null)
+            throw new IOException("page " + pageNum + " could not be decoded");
 
-        stream = mParser.getPage(pageNum);
-        Bitmap result = BitmapFactory.decodeStream(stream, null, options);
+        String id = result.getWidth() + "x" + result.getHeight();
         if (Utils.isKitKatOrLater()) {
             int m = result.getAllocationByteCount();
             Log.d("alloc " + id, String.valueOf(m));
         }
         Log.d("config "+id, result.getConfig().toString());
-/*
-        Bitmap oldResult = result;
-        // make extra sure result ist 565
-        if (false && result != null) {
-            result = result.copy(Bitmap.Config.RGB_565, false);
-            Utils.close(oldResult);
-        }
-*/
-        Utils.close(stream);
         return new Result(result, Picasso.LoadedFrom.DISK);
         //return new Result(Okio.source(stream), Picasso.LoadedFrom.DISK);
     }
 
+    // unsized decodes of pages bigger than the base limit come reduced, the reader
+    // shows full detail by decoding tiles of the visible region (see TileLayer).
+    // w/o a config given gray and large opaque pages are decoded to RGB_565
+    public static Bitmap decodePage(Parser parser, int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+        Bitmap rendered = parser.getPageBitmap(num);
+        if (rendered != null)
+            return Utils.scaleBitmap(rendered, maxWidth, maxHeight);
+
+        // fetched once, metadata still unknown is probed from the buffer that gets decoded
+        ByteBuffer buffer = null;
+        Map meta = ParserFactory.knownPageMetaData(parser, num);
+        if (meta == null) {
+            buffer = ParserFactory.probePageBuffer(parser, num);
+            meta = ParserFactory.probePageMetaData(parser, num);
+        }
+        // formats BitmapFactory can't read (jp2) are up to the parser
+        int width = PageRegionDecoder.intValue(meta.get(Parser.PAGEMETADATA_KEY_WIDTH));
+        int height = PageRegionDecoder.intValue(meta.get(Parser.PAGEMETADATA_KEY_HEIGHT));
+        if (width <= 0 || height <= 0 || "image/x-jp2".equals(String.valueOf(meta.get(Parser.PAGEMETADATA_KEY_MIME))))
+            return parser.decodePage(num, maxWidth, maxHeight, config);
+        if (buffer == null)
+            buffer = ParserFactory.probePageBuffer(parser, num);
+
+        Point size = PageRegionDecoder.getPageSize(meta);
+        if (size != null && maxWidth <= 0 && maxHeight <= 0) {
+            long maxPixels = (long) Utils.getMaxPageSize() * Utils.getMaxPageSize();
+            if ((long) size.x * size.y > maxPixels) {
+                double scale = Math.sqrt((double) maxPixels / ((long) size.x * size.y));
+                maxWidth = Math.max(1, (int) (scale * size.x));
+                maxHeight = Math.max(1, (int) (scale * size.y));
+            }
+        }
+        if (config == null)
+            config = choosePageConfig(parser, num, meta, buffer, maxWidth, maxHeight);
+        return Utils.decodeByteBuffer(buffer, maxWidth, maxHeight, config, width, height);
+    }
+
+    // opaque gray loses next to nothing in 565, color only when 8888 would cost resolution
+    private static Bitmap.Config choosePageConfig(Parser parser, int num, Map meta, ByteBuffer buffer,
+                                                  int maxWidth, int maxHeight) {
+        if (!Boolean.TRUE.equals(PageRegionDecoder.booleanValue(meta.get(Parser.PAGEMETADATA_KEY_OPAQUE))))
+            return null;
+        int width = PageRegionDecoder.intValue(meta.get(Parser.PAGEMETADATA_KEY_WIDTH));
+        int height = PageRegionDecoder.intValue(meta.get(Parser.PAGEMETADATA_KEY_HEIGHT));
+        if (width <= 0 || height <= 0)
+            return null;
+
+        // most gray scans are stored as color jpegs, a subsampled decode of the page
+        // at hand is cheap, the result is stored so it's sampled once only
+        if (meta.get(Parser.PAGEMETADATA_KEY_GRAY) == null &&
+                "image/jpeg".equals(String.valueOf(meta.get(Parser.PAGEMETADATA_KEY_MIME)))) {
+            try {
+                boolean gray = isGray(buffer, width, height);
+                ParserFactory.putPageMetaData(parser, num, Parser.PAGEMETADATA_KEY_GRAY, gray);
+                meta = new HashMap(meta);
+                meta.put(Parser.PAGEMETADATA_KEY_GRAY, gray);
+            } catch (Exception e) {
+                Log.d("LocalComicHandler", "gray check", e);
+            }
+        }
+        if (isOpaqueGray(meta))
+            return Bitmap.Config.RGB_565;
+
+        if (Utils.calculateInSampleSize(width, height, maxWidth, maxHeight, null) >
+                Utils.calculateInSampleSize(width, height, maxWidth, maxHeight, Bitmap.Config.RGB_565))
+            return Bitmap.Config.RGB_565;
+        return null;
+    }
+
+    // decides the config of the base and its tiles alike, gray+alpha pages stay 8888
+    static boolean isOpaqueGray(Map meta) {
+        return Boolean.TRUE.equals(PageRegionDecoder.booleanValue(meta.get(Parser.PAGEMETADATA_KEY_OPAQUE))) &&
+                Boolean.TRUE.equals(PageRegionDecoder.booleanValue(meta.get(Parser.PAGEMETADATA_KEY_GRAY)));
+    }
+
+    private static boolean isGray(ByteBuffer buffer, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.max(width, height) / (options.inSampleSize * 2) >= GRAY_SAMPLE_SIZE)
+            options.inSampleSize *= 2;
+        Bitmap sample = Utils.decodeByteBuffer(buffer, options);
+        if (sample == null)
+            return false;
+
+        int w = sample.getWidth(), h = sample.getHeight();
+        int[] pixels = new int[w * h];
+        sample.getPixels(pixels, 0, w, 0, 0, w, h);
+        sample.recycle();
+
+        int colored = 0;
+        for (int pixel : pixels) {
+            int r = (pixel >> 16) & 0xFF, g = (pixel >> 8) & 0xFF, b = pixel & 0xFF;
+            int chroma = Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b));
+            if (chroma > GRAY_MAX_CHROMA)
+                colored++;
+        }
+        return colored * 1000L <= GRAY_MAX_COLORED_PERMILLE * (long) pixels.length;
+    }
+
 /*  // trial to adapt to picasso 3.0.0-alpha
     // keeping this for reference.
     @Override
@@ -102,8 +231,31 @@ public class LocalComicHandler extends RequestHandler {
     public Uri getPageUri(int pageNum) {
         return new Uri.Builder()
                 .scheme(HANDLER_URI)
-                .authority("")
+                .authority(Integer.toString(mId))
                 .fragment(Integer.toString(pageNum))
                 .build();
     }
+
+    // for the app wide Picasso, hands page requests to the handler of their comic
+    public static class Dispatcher extends RequestHandler {
+        @Override
+        public boolean canHandleRequest(Request request) {
+            return HANDLER_URI.equals(request.uri.getScheme());
+        }
+
+        @Override
+        public Result load(Request request, int networkPolicy) throws IOException {
+            LocalComicHandler handler = null;
+            try {
+                synchronized (mHandlers) {
+                    handler = mHandlers.get(Integer.valueOf(request.uri.getAuthority()));
+                }
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+            if (handler == null)
+                throw new IOException("comic of " + request.uri + " is closed");
+            return handler.load(request, networkPolicy);
+        }
+    }
 }
@@ -17,6 +17,7 @@ import com.squareup.picasso.Request;
 import com.squareup.picasso.RequestHandler;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 
 
 public class LocalCoverHandler extends RequestHandler {
@@ -35,15 +36,27 @@ public class LocalCoverHandler extends RequestHandler {
 
     @Override
     public Result load(Request data, int networkPolicy) throws IOException {
-        Bitmap cover = getCover(data.uri, null);
-        return new Result(cover, Picasso.LoadedFrom.DISK);
+        // covers bound ahead of scrolling are requested with low priority
+        DecodeScheduler scheduler = DecodeScheduler.getInstance();
+        scheduler.acquire(data.priority == Picasso.Priority.LOW ?
+                DecodeScheduler.LANE_PREFETCH_COVER : DecodeScheduler.LANE_VISIBLE_COVER);
+        try {
+            Bitmap cover = getCover(data.uri, null);
+            return new Result(cover, Picasso.LoadedFrom.DISK);
+        } finally {
+            scheduler.release();
+        }
     }
 
     public static Bitmap createCover(Comic c, InputStream is) throws IOException {
+        return createCover(c, Utils.toByteBuffer(is));
+    }
+
+    public static Bitmap createCover(Comic c, ByteBuffer buffer) throws IOException {
         if (c == null)
             return null;
 
-        return getCover(getComicCoverUri(c), is);
+        return getCover(getComicCoverUri(c), buffer);
     }
 
     public static Bitmap getCover(Comic c) throws IOException {
@@ -53,7 +66,7 @@ public class LocalCoverHandler extends RequestHandler {
         return getCover(getComicCoverUri(c), null);
     }
 
-    private static Bitmap getCover(Uri comicUri, InputStream coverStream) throws IOException {
+    private static Bitmap getCover(Uri comicUri, ByteBuffer coverBuffer) throws IOException {
         Context ctx = MainApplication.getAppContext();
 
         Integer id = Integer.valueOf(comicUri.getFragment());
@@ -72,12 +85,11 @@ public class LocalCoverHandler extends RequestHandler {
         }
 
         Parser parser = null;
-        BufferedInputStream bis = null;
         FileOutputStream outputStream = null;
         try {
-            InputStream stream;
-            if ( coverStream != null) {
-                stream = coverStream;
+            ByteBuffer buffer;
+            if ( coverBuffer != null) {
+                buffer = coverBuffer;
             } else {
                 parser = ParserFactory.create(comicUri.getPath());
 
@@ -86,24 +98,21 @@ public class LocalCoverHandler extends RequestHandler {
                 if (parser.numPages() < 1)
                     throw new IOException("comic '" + comicUri + "' has no pages.");
 
-                stream = parser.getPage(0);
+                buffer = parser.getPageBuffer(0);
 
                 // update db entry
                 Storage.getStorage(ctx).updateBook(c.getId(), parser.getType(), parser.numPages());
             }
 
-            bis = new BufferedInputStream(stream);
-            byte[] data = Utils.toByteArray(bis);
-
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
-            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            Utils.decodeByteBuffer(buffer, options);
             options.inSampleSize = Utils.calculateInSampleSize(options,
                     Constants.COVER_THUMBNAIL_WIDTH, Constants.COVER_THUMBNAIL_HEIGHT);
             options.inJustDecodeBounds = false;
             //options.inPreferredConfig = Bitmap.Config.RGB_565;
 
-            Bitmap result = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            Bitmap result = Utils.decodeByteBuffer(buffer, options);
 
             // crop result to coverlike dimensions if needed
             int height = result.getHeight();
@@ -142,7 +151,6 @@ public class LocalCoverHandler extends RequestHandler {
             throw (IOException) e;
         } finally {
             Utils.close(parser);
-            Utils.close(bis);
             Utils.close(outputStream);
         }
 
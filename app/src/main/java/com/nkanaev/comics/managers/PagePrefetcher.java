@@ -0,0 +1,293 @@
+package com.nkanaev.comics.managers;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.nkanaev.comics.parsers.Parser;
+
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Decodes pages around the current one ahead of time, more of them in reading
+ * direction and even more while the reader flips fast. Decoded pages are kept
+ * in a byte bounded cache until the reader takes them, pages leaving the
+ * screen are handed back so flipping back doesn't decode them again.
+ * Dropped pages go to the BitmapPool.
+ * Page numbers are 0-based indices into the parser, independent of the
+ * left-to-right setting.
+ */
+public class PagePrefetcher implements ComponentCallbacks2 {
+    private static final String TAG = "PagePrefetcher";
+    // the reader keeps 2 pages each side on screen, look past that
+    private static final int AHEAD = 4;
+    private static final int BEHIND = 3;
+    // flips faster than this extend the look ahead, one page per flip
+    private static final long FAST_FLIP_MS = 800;
+    private static final int MAX_EXTRA_AHEAD = 4;
+    private static final int WORKERS = 2;
+
+    private final Parser mParser;
+    private final Context mContext;
+    private final long mMaxBytes;
+    private final ExecutorService mExecutor;
+
+    // guarded by this
+    private final HashMap<Integer, Bitmap> mCache = new HashMap<>();
+    private long mUsed = 0;
+    private final HashMap<Integer, Future> mPending = new HashMap<>();
+    private final Set<Integer> mRunning = new HashSet<>();
+    // pages currently handed out to the reader
+    private final Set<Integer> mShown = new HashSet<>();
+    // read w/o lock by decode lanes
+    private volatile int mCurrent = -1;
+    private int mPageCount = 0;
+    private boolean mForward = true;
+    private int mFastFlips = 0;
+    private long mLastFlip = 0;
+    private boolean mShutdown = false;
+
+    public PagePrefetcher(Context context, Parser parser) {
+        mParser = parser;
+        mContext = context.getApplicationContext();
+        // bitmaps are big, leave most of the heap to the views
+        mMaxBytes = 1024L * Utils.getHeapSize(mContext) / 4;
+        mExecutor = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, TAG);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mContext.registerComponentCallbacks(this);
+    }
+
+    public void onPageSelected(int page, int pageCount) {
+        synchronized (this) {
+            mPageCount = pageCount;
+            if (mCurrent >= 0 && page != mCurrent) {
+                long now = SystemClock.uptimeMillis();
+                boolean forward = page > mCurrent;
+                if (forward == mForward && now - mLastFlip < FAST_FLIP_MS)
+                    mFastFlips = Math.min(mFastFlips + 1, MAX_EXTRA_AHEAD);
+                else
+                    mFastFlips = 0;
+                mForward = forward;
+                mLastFlip = now;
+            }
+            mCurrent = page;
+            schedule();
+        }
+        // queued page requests change lanes
+        DecodeScheduler.getInstance().update();
+    }
+
+    // -1 until the first page is selected
+    public int getCurrentPage() {
+        return mCurrent;
+    }
+
+    // decoded page or null, waits if the page is being decoded right now
+    public synchronized Bitmap take(int page) throws InterruptedIOException {
+        mShown.add(page);
+        try {
+            while (mRunning.contains(page))
+                wait();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("waiting for prefetch of page " + page);
+        }
+        // queued only, the caller is faster decoding it itself
+        Future f = mPending.remove(page);
+        if (f != null)
+            f.cancel(false);
+
+        Bitmap bitmap = mCache.remove(page);
+        if (bitmap != null)
+            mUsed -= Utils.calculateBitmapSize(bitmap);
+        return bitmap;
+    }
+
+    // page left the screen, bitmap (may be null) is kept if still in range, recycled otherwise
+    public synchronized void release(int page, Bitmap bitmap) {
+        mShown.remove(page);
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        if (mShutdown || !isWanted(page) || mCache.containsKey(page)) {
+            BitmapPool.getInstance().put(bitmap);
+            return;
+        }
+        add(page, bitmap);
+    }
+
+    public synchronized void shutdown() {
+        mShutdown = true;
+        mContext.unregisterComponentCallbacks(this);
+        mExecutor.shutdownNow();
+        mPending.clear();
+        trim(0, true);
+    }
+
+    private boolean isWanted(int page) {
+        int distance = page - mCurrent;
+        if (!mForward)
+            distance = -distance;
+        return distance >= -BEHIND && distance <= AHEAD + mFastFlips;
+    }
+
+    // nearest pages first, alternating between reading direction and behind
+    private void schedule() {
+        if (mShutdown)
+            return;
+        int ahead = AHEAD + mFastFlips;
+        int step = mForward ? 1 : -1;
+        ArrayList<Integer> wanted = new ArrayList<>();
+        for (int d = 1; d <= Math.max(ahead, BEHIND); d++) {
+            if (d <= ahead)
+                wanted.add(mCurrent + d * step);
+            if (d <= BEHIND)
+                wanted.add(mCurrent - d * step);
+        }
+
+        // drop queued work that fell out of range
+        Iterator<Map.Entry<Integer, Future>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Future> entry = it.next();
+            if (!wanted.contains(entry.getKey()) && !mRunning.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        for (int page : wanted) {
+            if (page < 0 || page >= mPageCount)
+                continue;
+            if (mCache.containsKey(page) || mPending.containsKey(page) || mShown.contains(page))
+                continue;
+            try {
+                mPending.put(page, mExecutor.submit(new PrefetchTask(page)));
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+        }
+    }
+
+    private void add(int page, Bitmap bitmap) {
+        mCache.put(page, bitmap);
+        mUsed += Utils.calculateBitmapSize(bitmap);
+        trim(mMaxBytes, true);
+    }
+
+    // farthest pages go first, behind the reader before ahead, into the
+    // bitmap pool unless memory is short
+    private void trim(long maxBytes, boolean reuse) {
+        while (mUsed > maxBytes && !mCache.isEmpty()) {
+            int victim = -1;
+            int victimDistance = Integer.MIN_VALUE;
+            for (int page : mCache.keySet()) {
+                int distance = page - mCurrent;
+                if (!mForward)
+                    distance = -distance;
+                // behind counts double
+                distance = distance < 0 ? -2 * distance : distance;
+                if (distance > victimDistance) {
+                    victim = page;
+                    victimDistance = distance;
+                }
+            }
+            Bitmap bitmap = mCache.remove(victim);
+            mUsed -= Utils.calculateBitmapSize(bitmap);
+            if (reuse)
+                BitmapPool.getInstance().put(bitmap);
+            else
+                bitmap.recycle();
+        }
+    }
+
+    private class PrefetchTask implements Runnable {
+        private final int mPage;
+
+        PrefetchTask(int page) {
+            mPage = page;
+        }
+
+        @Override
+        public void run() {
+            synchronized (PagePrefetcher.this) {
+                if (mShutdown || mPending.get(mPage) == null)
+                    return;
+            }
+            DecodeScheduler scheduler = DecodeScheduler.getInstance();
+            try {
+                scheduler.acquire(DecodeScheduler.LANE_ADJACENT_PAGE);
+            } catch (InterruptedIOException e) {
+                return;
+            }
+            try {
+                decode();
+            } finally {
+                scheduler.release();
+            }
+        }
+
+        private void decode() {
+            synchronized (PagePrefetcher.this) {
+                // taken or out of range while waiting for the scheduler
+                if (mShutdown || mPending.get(mPage) == null)
+                    return;
+                mRunning.add(mPage);
+            }
+
+            Bitmap bitmap = null;
+            try {
+                // same parameters the reader uses, unsized and default config
+                bitmap = LocalComicHandler.decodePage(mParser, mPage, 0, 0, null);
+            } catch (Exception e) {
+                Log.d(TAG, "prefetch page " + mPage, e);
+            } finally {
+                // also on errors (OOM), take() would wait forever otherwise
+                synchronized (PagePrefetcher.this) {
+                    mRunning.remove(mPage);
+                    mPending.remove(mPage);
+                    if (bitmap != null) {
+                        if (mShutdown)
+                            bitmap.recycle();
+                        else
+                            add(mPage, bitmap);
+                    }
+                    // wake up take() waiting for this page
+                    PagePrefetcher.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onTrimMemory(int level) {
+        // running low and worse, also ui hidden and background levels
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            trim(0, false);
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+            trim(mMaxBytes / 2, false);
+    }
+
+    @Override
+    public synchronized void onLowMemory() {
+        trim(0, false);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
@@ -0,0 +1,118 @@
+package com.nkanaev.comics.managers;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Point;
+import android.graphics.Rect;
+import com.nkanaev.comics.parsers.Parser;
+import com.nkanaev.comics.parsers.ParserFactory;
+import com.nkanaev.comics.view.TileLayer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes regions of a parser page for the reader's tile layer. The region
+ * decoder holds the encoded page, it is only created once a tile is needed.
+ */
+public class PageRegionDecoder implements TileLayer.Source {
+    // formats BitmapRegionDecoder handles
+    private static final List<String> MIME_TYPES = Arrays.asList("image/jpeg", "image/png", "image/webp");
+
+    private final Parser mParser;
+    private final int mPage;
+    private Point mSize = null;
+    private Bitmap.Config mConfig = null;
+    private BitmapRegionDecoder mDecoder = null;
+    private boolean mClosed = false;
+
+    public PageRegionDecoder(Parser parser, int page) {
+        mParser = parser;
+        mPage = page;
+    }
+
+    // full resolution of a page decodable by region, null if unknown or unsupported
+    public static Point getPageSize(Parser parser, int num) throws IOException {
+        return getPageSize(ParserFactory.probePageMetaData(parser, num));
+    }
+
+    static Point getPageSize(Map meta) {
+        if (!MIME_TYPES.contains(String.valueOf(meta.get(Parser.PAGEMETADATA_KEY_MIME))))
+            return null;
+        int width = intValue(meta.get(Parser.PAGEMETADATA_KEY_WIDTH));
+        int height = intValue(meta.get(Parser.PAGEMETADATA_KEY_HEIGHT));
+        if (width <= 0 || height <= 0)
+            return null;
+        return new Point(width, height);
+    }
+
+    // metadata values come as Integer or merged String
+    static int intValue(Object o) {
+        if (o instanceof Integer)
+            return (Integer) o;
+        try {
+            return o != null ? Integer.parseInt(String.valueOf(o)) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // null if unknown
+    static Boolean booleanValue(Object o) {
+        if (o instanceof Boolean)
+            return (Boolean) o;
+        return o != null ? Boolean.valueOf(String.valueOf(o)) : null;
+    }
+
+    @Override
+    public synchronized boolean open() throws IOException {
+        Map meta = ParserFactory.probePageMetaData(mParser, mPage);
+        mSize = getPageSize(meta);
+        // same as the base, gray is known by now (see LocalComicHandler)
+        if (LocalComicHandler.isOpaqueGray(meta))
+            mConfig = Bitmap.Config.RGB_565;
+        return mSize != null;
+    }
+
+    @Override
+    public int getWidth() {
+        return mSize != null ? mSize.x : 0;
+    }
+
+    @Override
+    public int getHeight() {
+        return mSize != null ? mSize.y : 0;
+    }
+
+    @Override
+    public synchronized Bitmap decodeRegion(Rect region, int sampleSize) throws IOException {
+        if (mClosed)
+            throw new IOException("page " + mPage + " region decoder closed");
+        if (mDecoder == null) {
+            ByteBuffer buffer = mParser.getPageBuffer(mPage).duplicate();
+            if (buffer.hasArray())
+                mDecoder = BitmapRegionDecoder.newInstance(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), buffer.remaining(), false);
+            else
+                mDecoder = BitmapRegionDecoder.newInstance(new ByteBufferInputStream(buffer), false);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if (mConfig != null)
+            options.inPreferredConfig = mConfig;
+        return mDecoder.decodeRegion(region, options);
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        if (mDecoder != null)
+            mDecoder.recycle();
+        mDecoder = null;
+    }
+}
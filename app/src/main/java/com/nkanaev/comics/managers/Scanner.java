@@ -9,6 +9,8 @@ import com.nkanaev.comics.Constants;
 import com.nkanaev.comics.MainApplication;
 import com.nkanaev.comics.model.Comic;
 import com.nkanaev.comics.model.Storage;
+import com.nkanaev.comics.parsers.PageCache;
+import com.nkanaev.comics.parsers.PageIndex;
 import com.nkanaev.comics.parsers.Parser;
 import com.nkanaev.comics.parsers.ParserFactory;
 
@@ -230,6 +232,8 @@ public class Scanner {
                 if (!mIsStopped)
                     for (Comic missing : storedComics) {
                         Utils.deleteCoverCacheFile(missing);
+                        PageIndex.delete(missing.getFile());
+                        PageCache.delete(missing.getFile());
                         storage.removeComic(missing.getId());
                     }
 
@@ -245,6 +249,8 @@ public class Scanner {
                     Parser parser = null;
                     int count = 0;
                     try {
+                        // content might have changed, page table is rebuilt below
+                        storage.removePages(storedComic.getId());
                         parser = ParserFactory.create(storedComic.getFile());
                         Log.d("Scanner#244", storedComic.getFile().toString());
                         // no parser? check log
@@ -255,7 +261,12 @@ public class Scanner {
                             parser.parse();
                             count = parser.numPages();
                             // cache cover using already initialized parser
-                            LocalCoverHandler.createCover(storedComic,parser.getPage(0));
+                            DecodeScheduler.getInstance().acquire(DecodeScheduler.LANE_BACKGROUND);
+                            try {
+                                LocalCoverHandler.createCover(storedComic, parser.getPageBuffer(0));
+                            } finally {
+                                DecodeScheduler.getInstance().release();
+                            }
                         } catch (Exception e) {
                             Log.e("Scanning#253", "parse", e);
                         } finally {
@@ -276,6 +287,35 @@ public class Scanner {
                     }
                 }
 
+                // third pass: page tables, header reads only but every page, so last. books whose
+                // pages can't be probed cheaply are left out, the reader probes pages as shown
+                storedComics = storage.listComics(mSubFolder != null ? mSubFolder.toString() : null);
+                for (int i = 0; i < storedComics.size() && !mIsStopped; i++) {
+                    Comic storedComic = storedComics.get(i);
+                    if (storedComic.getTotalPages() < 1 || storage.hasPages(storedComic.getId()))
+                        continue;
+
+                    Parser parser = null;
+                    try {
+                        parser = ParserFactory.create(storedComic.getFile());
+                        if (parser == null || !parser.canProbePages())
+                            continue;
+
+                        List<Map> pages = new ArrayList<>();
+                        int count = parser.numPages();
+                        for (int num = 0; num < count && !mIsStopped; num++) {
+                            pages.add(ParserFactory.probePageMetaData(parser, num));
+                        }
+                        // incomplete tables would be taken for done
+                        if (!mIsStopped)
+                            storage.updatePages(storedComic.getId(), pages);
+                    } catch (Exception e) {
+                        Log.e("Scanner", "pages", e);
+                    } finally {
+                        Utils.close(parser);
+                    }
+                }
+
             } finally {
                 mIsStopped = false;
 
@@ -33,6 +33,8 @@ import com.nkanaev.comics.parsers.Parser;
 import javax.microedition.khronos.egl.EGL10;
 import java.io.*;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.util.*;
 import java.util.zip.CRC32;
@@ -121,52 +123,11 @@ public final class Utils {
         return JP2Decoder.isJPEG2000(b);
     }
 
-    public static boolean isRarStream(InputStream is) {
-        final byte[] rarSignature = new byte[]{'R', 'a', 'r', '!', 0x1A, 0x07};
-        return inputStreamStartsWith(is, rarSignature);
-    }
-
-    public static boolean isPdfStream(InputStream is) {
-        final byte[] pdfSignature = {'%', 'P', 'D', 'F', '-'};
-        return inputStreamStartsWith(is, pdfSignature);
-    }
-
-    public static boolean isSevenZStream(InputStream is) {
-        final byte[] sevenZSignature = {'7', 'z', (byte) 0xBC, (byte) 0xAF, 0x27, 0x1C};
-        return inputStreamStartsWith(is, sevenZSignature);
-    }
-
-    public static boolean isZipStream(InputStream is) {
-        final byte[] zipSignature = {'P', 'K', (byte) 0x03, (byte) 0x04};
-        return inputStreamStartsWith(is, zipSignature);
-    }
-
-    public static boolean isTarStream(InputStream is) {
-        final byte[] tarSignature = {'u', 's', 't', 'a', 'r'};
-        return inputStreamStartsWith(is, tarSignature, 257);
-    }
-
-    private static boolean inputStreamStartsWith(InputStream is, byte[] bytesIn) {
-        return inputStreamStartsWith(is, bytesIn, 0);
-    }
-
-    private static boolean inputStreamStartsWith(InputStream is, byte[] bytesIn, int offset){
-        try {
-            if (bytesIn == null)
-                throw new IllegalArgumentException("bytesIn must not be Null");
-            if (!is.markSupported())
-                throw new IllegalArgumentException("inputStream must support mark/reset");
-
-            byte[] isHeader = new byte[bytesIn.length];
-            is.mark(offset + bytesIn.length);
-            is.skip(offset);
-            is.read(isHeader);
-            is.reset();
-            return Arrays.equals(bytesIn,isHeader);
-        } catch (Exception e) {
-            Log.e("Utils.isRarStream","",e);
-        }
-        return false;
+    public static boolean isJP2Buffer(ByteBuffer buffer) {
+        ByteBuffer b = buffer.duplicate();
+        byte[] header = new byte[Math.min(24, b.remaining())];
+        b.get(header);
+        return JP2Decoder.isJPEG2000(header);
     }
 
     public static boolean isDir(String filename) {
@@ -340,6 +301,34 @@ public final class Utils {
         return inSampleSize;
     }
 
+    // largest power of 2 keeping the result at least as big as the area fitting into
+    // maxWidth x maxHeight (0 is unbounded), but always within the bitmap memory limit
+    public static int calculateInSampleSize(int width, int height, int maxWidth, int maxHeight, Bitmap.Config config) {
+        float scale = 1f;
+        if (maxWidth > 0 && width > maxWidth)
+            scale = (float) maxWidth / width;
+        if (maxHeight > 0 && height * scale > maxHeight)
+            scale = (float) maxHeight / height;
+        int reqWidth = Math.max(1, Math.round(scale * width));
+
+        int inSampleSize = 1;
+        while (width / (inSampleSize * 2) >= reqWidth)
+            inSampleSize *= 2;
+
+        int bytesPerPixel = bytesPerPixel(config);
+        long maxMemorySize = bitmapMaxMemorySize();
+        while (maxMemorySize > 0 &&
+                (long) (width / inSampleSize) * (height / inSampleSize) * bytesPerPixel > maxMemorySize)
+            inSampleSize *= 2;
+        return inSampleSize;
+    }
+
+    // null is the decoder default ARGB_8888
+    public static int bytesPerPixel(Bitmap.Config config) {
+        return config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444 ? 2 :
+                config == Bitmap.Config.ALPHA_8 ? 1 : 4;
+    }
+
     public static int calculateMemorySize(Context context, int percentage) {
         ActivityManager activityManager = (ActivityManager) context.getSystemService(ACTIVITY_SERVICE);
         int memoryClass = activityManager.getLargeMemoryClass();
@@ -394,6 +383,98 @@ public final class Utils {
         }
     }
 
+    public static ByteBuffer toByteBuffer(InputStream is) throws IOException {
+        return ByteBuffer.wrap(toByteArray(is));
+    }
+
+    // read-only mapping, stays valid after the channel is closed
+    public static ByteBuffer mapFile(File file, long offset, long size) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            return fis.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, size);
+        } finally {
+            close(fis);
+        }
+    }
+
+    // heap buffers are decoded in place, others (mapped) streamed w/o a heap copy
+    public static Bitmap decodeByteBuffer(ByteBuffer buffer, BitmapFactory.Options options) {
+        ByteBuffer b = buffer.duplicate();
+        if (b.hasArray())
+            return BitmapFactory.decodeByteArray(b.array(), b.arrayOffset() + b.position(), b.remaining(), options);
+        return BitmapFactory.decodeStream(new ByteBufferInputStream(b), null, options);
+    }
+
+    // decodes subsampled to fit maxWidth x maxHeight (0 is unbounded) and the bitmap memory
+    // limit, pass the encoded dimensions if known to skip reading the bounds
+    public static Bitmap decodeByteBuffer(ByteBuffer buffer, int maxWidth, int maxHeight,
+                                          Bitmap.Config config, int width, int height) {
+        if (buffer == null)
+            return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (width <= 0 || height <= 0) {
+            options.inJustDecodeBounds = true;
+            decodeByteBuffer(buffer, options);
+            width = options.outWidth;
+            height = options.outHeight;
+            // unsupported format (e.g. jp2)
+            if (width <= 0 || height <= 0)
+                return null;
+            options = new BitmapFactory.Options();
+        }
+
+        if (config != null)
+            options.inPreferredConfig = config;
+        int sampleSize = calculateInSampleSize(width, height, maxWidth, maxHeight, config);
+        options.inSampleSize = sampleSize;
+
+        // decode into a pooled page bitmap, mutable so it can be pooled later on
+        Bitmap reusable = null;
+        if (!isOreoOrLater() || config != Bitmap.Config.HARDWARE) {
+            options.inMutable = true;
+            // decoders round subsampled dimensions up at most
+            long bytes = (long) ((width + sampleSize - 1) / sampleSize) *
+                    ((height + sampleSize - 1) / sampleSize) * bytesPerPixel(config);
+            reusable = BitmapPool.getInstance().get(bytes);
+            options.inBitmap = reusable;
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decodeByteBuffer(buffer, options);
+        } catch (IllegalArgumentException e) {
+            if (reusable == null)
+                throw e;
+            // didn't fit after all
+            options.inBitmap = null;
+            bitmap = decodeByteBuffer(buffer, options);
+        }
+        if (reusable != null && bitmap != reusable)
+            BitmapPool.getInstance().put(reusable);
+        // subsampling works in powers of 2, scale down the rest
+        return bitmap != null ? scaleBitmap(bitmap, maxWidth, maxHeight) : null;
+    }
+
+    // returns bitmap if it fits already, a scaled copy otherwise pooling the original
+    public static Bitmap scaleBitmap(Bitmap bitmap, int maxWidth, int maxHeight) {
+        int w = bitmap.getWidth();
+        int h = bitmap.getHeight();
+        float scale = 1f;
+        if (maxWidth > 0 && w > maxWidth)
+            scale = (float) maxWidth / w;
+        if (maxHeight > 0 && h * scale > maxHeight)
+            scale = (float) maxHeight / h;
+        if (scale >= 1f)
+            return bitmap;
+
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                Math.max(1, Math.round(scale * w)), Math.max(1, Math.round(scale * h)), true);
+        if (scaled != bitmap)
+            BitmapPool.getInstance().put(bitmap);
+        return scaled;
+    }
+
     public static void copyToFile(InputStream inStream, File file) throws IOException {
         OutputStream outStream = new FileOutputStream(file);
         byte[] buffer = new byte[4 * 1024];
@@ -442,6 +523,18 @@ public final class Utils {
         }
     }
 
+    // cache sub folders surviving cleanCacheDir(), content is validated on use
+    private static final List<String> PERSISTENT_CACHE_FOLDERS = Arrays.asList("index", "pages");
+
+    public static File getPersistentCacheDirectory(String name) {
+        if (!PERSISTENT_CACHE_FOLDERS.contains(name))
+            throw new IllegalArgumentException("unknown persistent cache folder " + name);
+        File dir = new File(getCacheFolder(), name);
+        if (!dir.exists())
+            dir.mkdirs();
+        return dir;
+    }
+
     public static File initCacheDirectory(String prefix) {
         File appCacheDir = getCacheFolder();
         // create a unique id
@@ -469,6 +562,9 @@ public final class Utils {
                 File[] files = cacheDir.listFiles();
                 if (files!=null)
                     for (File f: files) {
+                        // keep persistent caches
+                        if (f.isDirectory() && PERSISTENT_CACHE_FOLDERS.contains(f.getName()))
+                            continue;
                         // leftover unpacked comics
                         if (f.isDirectory())
                             rmDir(f,true);
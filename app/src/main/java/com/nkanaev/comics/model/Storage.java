@@ -3,17 +3,16 @@ package com.nkanaev.comics.model;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
 import android.util.Log;
 import com.nkanaev.comics.managers.IgnoreCaseComparator;
+import com.nkanaev.comics.parsers.Parser;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.*;
 
 import static android.database.DatabaseUtils.sqlEscapeString;
 
@@ -41,8 +40,35 @@ public class Storage {
         };
     }
 
+    // page metadata per comic, filled by the Scanner, page index as seen by the reader
+    public static abstract class Page implements BaseColumns {
+        public static final String TABLE_NAME = "page";
+
+        public static final String COLUMN_NAME_COMIC_ID = "comic_id";
+        public static final String COLUMN_NAME_INDEX = "page_index";
+        public static final String COLUMN_NAME_NAME = "name";
+        public static final String COLUMN_NAME_WIDTH = "width";
+        public static final String COLUMN_NAME_HEIGHT = "height";
+        public static final String COLUMN_NAME_MIME = "mime";
+        public static final String COLUMN_NAME_SIZE = "size";
+        public static final String COLUMN_NAME_GRAY = "gray";
+        public static final String COLUMN_NAME_OPAQUE = "opaque";
+
+        public static final String[] columns = {
+                Page.COLUMN_NAME_COMIC_ID,
+                Page.COLUMN_NAME_INDEX,
+                Page.COLUMN_NAME_NAME,
+                Page.COLUMN_NAME_WIDTH,
+                Page.COLUMN_NAME_HEIGHT,
+                Page.COLUMN_NAME_MIME,
+                Page.COLUMN_NAME_SIZE,
+                Page.COLUMN_NAME_GRAY,
+                Page.COLUMN_NAME_OPAQUE
+        };
+    }
+
     public class ComicDbHelper extends SQLiteOpenHelper {
-        public static final int DATABASE_VERSION = 2;
+        public static final int DATABASE_VERSION = 4;
         public static final String DATABASE_NAME = "comics.db";
 
         public ComicDbHelper(Context context) {
@@ -61,6 +87,23 @@ public class Storage {
                     + Book.COLUMN_NAME_UPDATED_AT + " INTEGER"
                     + ")";
             db.execSQL(sql);
+            createPageTable(db);
+        }
+
+        private void createPageTable(SQLiteDatabase db) {
+            final String sql = "CREATE TABLE " + Page.TABLE_NAME + " ("
+                    + Page.COLUMN_NAME_COMIC_ID + " INTEGER,"
+                    + Page.COLUMN_NAME_INDEX + " INTEGER,"
+                    + Page.COLUMN_NAME_NAME + " TEXT,"
+                    + Page.COLUMN_NAME_WIDTH + " INTEGER,"
+                    + Page.COLUMN_NAME_HEIGHT + " INTEGER,"
+                    + Page.COLUMN_NAME_MIME + " TEXT,"
+                    + Page.COLUMN_NAME_SIZE + " INTEGER,"
+                    + Page.COLUMN_NAME_GRAY + " INTEGER,"
+                    + Page.COLUMN_NAME_OPAQUE + " INTEGER,"
+                    + "PRIMARY KEY (" + Page.COLUMN_NAME_COMIC_ID + "," + Page.COLUMN_NAME_INDEX + ")"
+                    + ")";
+            db.execSQL(sql);
         }
 
         @Override
@@ -68,6 +111,14 @@ public class Storage {
             if (oldVersion < 2) {
                 db.execSQL("ALTER TABLE " + Book.TABLE_NAME + " ADD COLUMN " + Book.COLUMN_NAME_UPDATED_AT + " INTEGER");
             }
+            if (oldVersion < 3) {
+                createPageTable(db);
+            } else if (oldVersion < 4) {
+                // emptied, the scanner fills in the new columns on its next run
+                db.execSQL("ALTER TABLE " + Page.TABLE_NAME + " ADD COLUMN " + Page.COLUMN_NAME_GRAY + " INTEGER");
+                db.execSQL("ALTER TABLE " + Page.TABLE_NAME + " ADD COLUMN " + Page.COLUMN_NAME_OPAQUE + " INTEGER");
+                db.delete(Page.TABLE_NAME, null, null);
+            }
         }
     }
 
@@ -94,6 +145,7 @@ public class Storage {
     public void clearStorage() {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         db.delete(Book.TABLE_NAME, null, null);
+        db.delete(Page.TABLE_NAME, null, null);
     }
 
     private ContentValues buildContentValues(File filepath, String type, Integer numPages){
@@ -142,6 +194,134 @@ public class Storage {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
         String whereClause = Book.COLUMN_NAME_ID + '=' + Integer.toString(comicId);
         int i = db.delete(Book.TABLE_NAME, whereClause, null);
+        removePages(comicId);
+    }
+
+    // maps keyed by Parser.PAGEMETADATA_KEY_*, list position is the page index
+    public void updatePages(int comicId, List<Map> pages) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(Page.TABLE_NAME, Page.COLUMN_NAME_COMIC_ID + "=" + Integer.toString(comicId), null);
+            for (int i = 0; i < pages.size(); i++) {
+                ContentValues cv = pageValues(pages.get(i));
+                cv.put(Page.COLUMN_NAME_COMIC_ID, comicId);
+                cv.put(Page.COLUMN_NAME_INDEX, i);
+                db.insert(Page.TABLE_NAME, null, cv);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // page properties found out later on (e.g. while reading), the row of the
+    // same name only, no-op if the comic wasn't scanned for pages
+    public void updatePage(File file, int index, Map page) {
+        Object name = page.get(Parser.PAGEMETADATA_KEY_NAME);
+        ArrayList<Comic> comics = listComics(file.getParentFile().getAbsolutePath(), file.getName());
+        if (name == null || comics.size() != 1)
+            return;
+
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        String whereClause = Page.COLUMN_NAME_COMIC_ID + "=" + Integer.toString(comics.get(0).getId()) +
+                " AND " + Page.COLUMN_NAME_INDEX + "=" + Integer.toString(index) +
+                " AND " + Page.COLUMN_NAME_NAME + "=?";
+        db.update(Page.TABLE_NAME, pageValues(page), whereClause, new String[]{name.toString()});
+    }
+
+    private static ContentValues pageValues(Map page) {
+        ContentValues cv = new ContentValues();
+        putString(cv, Page.COLUMN_NAME_NAME, page.get(Parser.PAGEMETADATA_KEY_NAME));
+        putNumber(cv, Page.COLUMN_NAME_WIDTH, page.get(Parser.PAGEMETADATA_KEY_WIDTH));
+        putNumber(cv, Page.COLUMN_NAME_HEIGHT, page.get(Parser.PAGEMETADATA_KEY_HEIGHT));
+        putString(cv, Page.COLUMN_NAME_MIME, page.get(Parser.PAGEMETADATA_KEY_MIME));
+        putNumber(cv, Page.COLUMN_NAME_SIZE, page.get(Parser.PAGEMETADATA_KEY_SIZE));
+        putBoolean(cv, Page.COLUMN_NAME_GRAY, page.get(Parser.PAGEMETADATA_KEY_GRAY));
+        putBoolean(cv, Page.COLUMN_NAME_OPAQUE, page.get(Parser.PAGEMETADATA_KEY_OPAQUE));
+        return cv;
+    }
+
+    private static void putString(ContentValues cv, String column, Object value) {
+        if (value != null)
+            cv.put(column, value.toString());
+    }
+
+    private static void putNumber(ContentValues cv, String column, Object value) {
+        if (value instanceof Number) {
+            cv.put(column, ((Number) value).longValue());
+        } else if (value != null) {
+            try {
+                cv.put(column, Long.parseLong(value.toString()));
+            } catch (NumberFormatException e) {
+                // leave empty
+            }
+        }
+    }
+
+    private static void putBoolean(ContentValues cv, String column, Object value) {
+        if (value != null)
+            cv.put(column, Boolean.parseBoolean(value.toString()) ? 1 : 0);
+    }
+
+    public void removePages(int comicId) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.delete(Page.TABLE_NAME, Page.COLUMN_NAME_COMIC_ID + "=" + Integer.toString(comicId), null);
+    }
+
+    public boolean hasPages(int comicId) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, Page.TABLE_NAME,
+                Page.COLUMN_NAME_COMIC_ID + "=" + Integer.toString(comicId)) > 0;
+    }
+
+    // empty if the comic wasn't scanned for pages yet
+    public ArrayList<Map> listPages(int comicId) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        String selection = Page.COLUMN_NAME_COMIC_ID + "=" + Integer.toString(comicId);
+        Cursor c = db.query(Page.TABLE_NAME, Page.columns, selection, null, null, null, Page.COLUMN_NAME_INDEX + " ASC");
+        ArrayList<Map> pages = new ArrayList<>();
+
+        c.moveToFirst();
+        if (c.getCount() > 0) {
+            do {
+                // gaps would shift all following pages
+                if (c.getInt(c.getColumnIndex(Page.COLUMN_NAME_INDEX)) != pages.size())
+                    break;
+                pages.add(pageFromCursor(c));
+            } while (c.moveToNext());
+        }
+
+        c.close();
+
+        return pages;
+    }
+
+    public ArrayList<Map> listPages(File file) {
+        ArrayList<Comic> comics = listComics(file.getParentFile().getAbsolutePath(), file.getName());
+        if (comics.size() != 1)
+            return new ArrayList<>();
+        return listPages(comics.get(0).getId());
+    }
+
+    private Map pageFromCursor(Cursor c) {
+        Map page = new HashMap();
+        int i;
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_NAME)))
+            page.put(Parser.PAGEMETADATA_KEY_NAME, c.getString(i));
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_WIDTH)))
+            page.put(Parser.PAGEMETADATA_KEY_WIDTH, c.getInt(i));
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_HEIGHT)))
+            page.put(Parser.PAGEMETADATA_KEY_HEIGHT, c.getInt(i));
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_MIME)))
+            page.put(Parser.PAGEMETADATA_KEY_MIME, c.getString(i));
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_SIZE)))
+            page.put(Parser.PAGEMETADATA_KEY_SIZE, c.getLong(i));
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_GRAY)))
+            page.put(Parser.PAGEMETADATA_KEY_GRAY, c.getInt(i) != 0);
+        if (!c.isNull(i = c.getColumnIndex(Page.COLUMN_NAME_OPAQUE)))
+            page.put(Parser.PAGEMETADATA_KEY_OPAQUE, c.getInt(i) != 0);
+        return page;
     }
 
     public ArrayList<Comic> listDirectoryComics() {
@@ -3,20 +3,28 @@ package com.nkanaev.comics.parsers;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.AssetFileDescriptor;
+import android.graphics.Bitmap;
+import android.graphics.Point;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import com.nkanaev.comics.MainApplication;
+import com.nkanaev.comics.managers.Utils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 
 public abstract class AbstractParser implements Parser {
-    // remember source, can be either File or Intent
+    // remember source, can be File, Intent or a seekable ParcelFileDescriptor
     protected Object mSource = null;
     protected Class[] mParseables;
+    // persist page listings, disabled for transient sources (e.g. temp copies)
+    private boolean mPageIndexEnabled = true;
+    // header block read during type detection, may be null
+    private FileHeader mHeader = null;
 
     private AbstractParser() {
         // disallowed
@@ -43,6 +51,35 @@ public abstract class AbstractParser implements Parser {
         mSource = source;
     }
 
+    protected FileHeader getHeader() {
+        return mHeader;
+    }
+
+    // must belong to the current source
+    protected void setHeader(FileHeader header) {
+        mHeader = header;
+    }
+
+    protected void setPageIndexEnabled(boolean enabled) {
+        mPageIndexEnabled = enabled;
+    }
+
+    // returns a valid page index from a previous parse() run or null
+    protected PageIndex loadPageIndex() {
+        Object source = getSource();
+        if (!mPageIndexEnabled || !(source instanceof File))
+            return null;
+        return PageIndex.load((File) source, getClass().getSimpleName());
+    }
+
+    // returns an empty page index to be filled and saved or null if unsupported
+    protected PageIndex createPageIndex() {
+        Object source = getSource();
+        if (!mPageIndexEnabled || !(source instanceof File))
+            return null;
+        return new PageIndex((File) source, getClass().getSimpleName());
+    }
+
     public static Uri uriFromIntent(Intent intent) {
         Context context = MainApplication.getAppContext();
         return intent.getData();
@@ -63,6 +100,29 @@ public abstract class AbstractParser implements Parser {
         return inputStreamFromIntent(intent).getChannel();
     }
 
+    // seekable content:// documents can be read in place, null if the provider
+    // only offers a pipe or the descriptor could not be opened
+    public static ParcelFileDescriptor seekableDescriptorFromIntent(Intent intent) {
+        ParcelFileDescriptor pfd = null;
+        try {
+            pfd = MainApplication.getAppContext()
+                    .getContentResolver().openFileDescriptor(uriFromIntent(intent), "r");
+        } catch (Exception e) {
+            return null;
+        }
+        // pipes and sockets have no size
+        if (pfd != null && pfd.getStatSize() < 0) {
+            Utils.close(pfd);
+            return null;
+        }
+        return pfd;
+    }
+
+    // descriptor sources belong to the caller, parsers keep their own duplicate
+    protected static FileChannel channelFromDescriptor(ParcelFileDescriptor pfd) throws IOException {
+        return new ParcelFileDescriptor.AutoCloseInputStream(pfd.dup()).getChannel();
+    }
+
     public static File fileFromIntent(Intent intent) {
         return new File(uriFromIntent(intent).getPath());
     }
@@ -101,12 +161,43 @@ public abstract class AbstractParser implements Parser {
     @Override
     abstract public InputStream getPage(int num) throws IOException;
 
+    // override if pages can be mapped/sliced w/o copying, default reads page stream to heap
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        return Utils.toByteBuffer(getPage(num));
+    }
+
+    // override if pages are rendered rather than stored, saves the encode/decode round trip
+    @Override
+    public Bitmap getPageBitmap(int num) throws IOException {
+        return null;
+    }
+
+    @Override
+    public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+        Bitmap rendered = getPageBitmap(num);
+        if (rendered != null)
+            return Utils.scaleBitmap(rendered, maxWidth, maxHeight);
+        return Utils.decodeByteBuffer(getPageBuffer(num), maxWidth, maxHeight, config, 0, 0);
+    }
+
     // not strictly necessary, implement to provide details about book pages (file name, resolution ...)
     @Override
     public Map getPageMetaData(int num) throws IOException {
         return Collections.emptyMap();
     }
 
+    @Override
+    public Point getPageDimensions(int num) throws IOException {
+        return null;
+    }
+
+    // override if page heads come cheap, see Scanner
+    @Override
+    public boolean canProbePages() throws IOException {
+        return false;
+    }
+
     @Override
     abstract public int numPages() throws IOException;
 
@@ -120,7 +211,12 @@ public abstract class AbstractParser implements Parser {
 
     public boolean canParse(Class clazz) {
         // add some valid classes in constructor
-        // of your actual implementation
-        return Arrays.asList(mParseables).contains(clazz);
+        // of your actual implementation,
+        // subclasses count too (content resolvers hand out ParcelFileDescriptor subclasses)
+        for (Class parseable : mParseables) {
+            if (parseable.isAssignableFrom(clazz))
+                return true;
+        }
+        return false;
     }
 }
@@ -10,54 +10,91 @@ import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
 
+/**
+ * Content uris can only be streamed from the start. The archive is read once on
+ * parse(), all images are spooled into one segment file and served from there
+ * by offset afterwards.
+ */
 public class CommonsUriParser extends AbstractParser {
-    private List<ArchiveEntry> mEntries = new ArrayList<>();
+    private List<PageIndex.Entry> mEntries = null;
+    private File mCacheDir = null;
+    private FileChannel mChannel = null;
 
-    public CommonsUriParser(Uri mUri) {
+    public CommonsUriParser() {
         super(new Class[]{Uri.class});
     }
 
-    public void parse() throws IOException {
+    public synchronized void parse() throws IOException {
+        if (mEntries != null)
+            return;
+
         Uri uri = (Uri) getSource();
         InputStream is = MainApplication.getAppContext().getContentResolver().openInputStream(uri);
 
+        mCacheDir = Utils.initCacheDirectory("uri");
+        File segmentFile = new File(mCacheDir, "pages");
+        ArrayList<PageIndex.Entry> entries = new ArrayList<>();
         BufferedInputStream bis = null;
         ArchiveInputStream ais = null;
+        OutputStream os = null;
         try {
             bis = new BufferedInputStream(is);
             ais = new ArchiveStreamFactory().createArchiveInputStream(bis);
+            os = new BufferedOutputStream(new FileOutputStream(segmentFile));
+            byte[] buffer = new byte[16 * 1024];
+            long offset = 0;
             ArchiveEntry entry = null;
 
             while ((entry = ais.getNextEntry()) != null) {
-                if (entry.isDirectory()) {
+                if (entry.isDirectory() || !Utils.isImage(entry.getName())) {
                     continue;
                 }
-                if (Utils.isImage(entry.getName())) {
-                    // read to memory
-                    mEntries.add(entry);
+                // append to segment, entry sizes may be unknown in streamed archives
+                long size = 0;
+                int read;
+                while ((read = ais.read(buffer)) != -1) {
+                    os.write(buffer, 0, read);
+                    size += read;
                 }
+                entries.add(new PageIndex.Entry(entry.getName(), -1, offset, size));
+                offset += size;
             }
+            os.close();
+            os = null;
 
-            Collections.sort(mEntries, new IgnoreCaseComparator() {
+            Collections.sort(entries, new IgnoreCaseComparator() {
                 @Override
                 public String stringValue(Object o) {
-                    return ((ArchiveEntry) o).getName();
+                    return ((PageIndex.Entry) o).name;
                 }
             });
+
+            mChannel = new FileInputStream(segmentFile).getChannel();
+            mEntries = entries;
         } catch (ArchiveException e) {
             throw new IOException(e);
         } finally {
+            Utils.close(os);
             Utils.close(ais);
+            Utils.close(is);
+            if (mEntries == null) {
+                Utils.rmDir(mCacheDir);
+                mCacheDir = null;
+            }
         }
     }
 
     @Override
-    public void destroy() {
-        mEntries.clear();
+    public synchronized void destroy() {
+        mEntries = null;
+        Utils.close(mChannel);
+        mChannel = null;
+        Utils.rmDir(mCacheDir);
+        mCacheDir = null;
     }
 
     @Override
@@ -66,36 +103,41 @@ public class CommonsUriParser extends AbstractParser {
     }
 
     @Override
-    public int numPages() {
+    public int numPages() throws IOException {
+        parse();
         return mEntries.size();
     }
 
     @Override
     public InputStream getPage(int num) throws IOException {
-        ArchiveEntry neededEntry = mEntries.get(num);
-
-        Uri uri = (Uri) getSource();
-        InputStream is = MainApplication.getAppContext().getContentResolver().openInputStream(uri);
-        BufferedInputStream bis = null;
-        ArchiveInputStream ais = null;
-        try {
-            bis = new BufferedInputStream(is);
-            ais = new ArchiveStreamFactory().createArchiveInputStream(bis);
-            ArchiveEntry entry = null;
-            byte[] byteArray = new byte[0];
-            while ((entry = ais.getNextEntry()) != null) {
-                if (entry.equals(neededEntry)) {
-                    // read to memory
-                    byteArray = Utils.toByteArray(ais);
-                    break;
-                }
-            }
-            return new ByteArrayInputStream(byteArray);
-        } catch (ArchiveException e) {
-            throw new IOException(e);
-        } finally {
-            Utils.close(ais);
+        parse();
+        PageIndex.Entry needle = mEntries.get(num);
+        // positional reads, concurrent page requests don't interfere
+        byte[] data = new byte[(int) needle.size];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = needle.offset;
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("unexpected end of segment in " + needle.name);
+            position += read;
         }
+        return new ByteArrayInputStream(data);
+    }
+
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+        PageIndex.Entry needle = mEntries.get(num);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, needle.offset, needle.size);
     }
 
+    @Override
+    public Map getPageMetaData(int num) throws IOException {
+        parse();
+        Map m = new HashMap<>();
+        m.put(Parser.PAGEMETADATA_KEY_NAME, mEntries.get(num).name);
+        m.put(Parser.PAGEMETADATA_KEY_SIZE, mEntries.get(num).size);
+        return m;
+    }
 }
@@ -1,23 +1,28 @@
 package com.nkanaev.comics.parsers;
 
+import android.os.ParcelFileDescriptor;
 import com.nkanaev.comics.managers.IgnoreCaseComparator;
 import com.nkanaev.comics.managers.Utils;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.channels.SeekableByteChannel;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 
 public class CommonsZipParser extends AbstractParser {
     private ZipFile mZipFile = null;
     private ArrayList<ZipArchiveEntry> mEntries = null;
+    // descriptor sources only
+    private FileChannel mChannel = null;
 
     public CommonsZipParser() {
-        super(new Class[]{File.class, SeekableByteChannel.class});
+        super(new Class[]{File.class, ParcelFileDescriptor.class});
     }
 
     @Override
@@ -28,8 +33,32 @@ public class CommonsZipParser extends AbstractParser {
         Object o = getSource();
         if (o instanceof File)
             mZipFile = new ZipFile(((File)o).getAbsolutePath());
-        else
-            mZipFile = new ZipFile((SeekableByteChannel)o);
+        else {
+            FileChannel channel = channelFromDescriptor((ParcelFileDescriptor) o);
+            try {
+                mZipFile = new ZipFile(channel);
+            } catch (IOException e) {
+                Utils.close(channel);
+                throw e;
+            }
+            mChannel = channel;
+        }
+
+        // reopened? skip listing and sorting
+        PageIndex pageIndex = loadPageIndex();
+        if (pageIndex != null) {
+            ArrayList<ZipArchiveEntry> entries = new ArrayList<>(pageIndex.size());
+            for (PageIndex.Entry entry : pageIndex.getEntries()) {
+                ZipArchiveEntry ze = mZipFile.getEntry(entry.name);
+                if (ze == null)
+                    break;
+                entries.add(ze);
+            }
+            if (entries.size() == pageIndex.size()) {
+                mEntries = entries;
+                return;
+            }
+        }
 
         mEntries = new ArrayList<>();
 
@@ -49,6 +78,14 @@ public class CommonsZipParser extends AbstractParser {
                         return ((ZipArchiveEntry) o).getName();
                     }
                 });
+
+        pageIndex = createPageIndex();
+        if (pageIndex != null) {
+            for (ZipArchiveEntry ze : mEntries) {
+                pageIndex.add(ze.getName(), -1, -1, ze.getSize());
+            }
+            pageIndex.save();
+        }
     }
 
     @Override
@@ -64,6 +101,27 @@ public class CommonsZipParser extends AbstractParser {
         return mZipFile.getInputStream(mEntries.get(num));
     }
 
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+        ZipArchiveEntry entry = mEntries.get(num);
+        // stored entries are mapped right out of the archive
+        if (entry.getMethod() == ZipMethod.STORED.getCode() &&
+                !entry.getGeneralPurposeBit().usesEncryption()) {
+            // resolves the data offset from the local header
+            synchronized (mZipFile) {
+                Utils.close(mZipFile.getRawInputStream(entry));
+            }
+            long offset = entry.getDataOffset();
+            if (offset >= 0 && entry.getSize() >= 0) {
+                if (mChannel != null)
+                    return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, entry.getSize());
+                return Utils.mapFile((File) getSource(), offset, entry.getSize());
+            }
+        }
+        return super.getPageBuffer(num);
+    }
+
     @Override
     public Map getPageMetaData(int num) throws IOException {
         parse();
@@ -73,6 +131,12 @@ public class CommonsZipParser extends AbstractParser {
         return m;
     }
 
+    // entries inflate lazily, a header read inflates little more than the header
+    @Override
+    public boolean canProbePages() {
+        return true;
+    }
+
     @Override
     public String getType() {
         return "CommonsZip";
@@ -80,8 +144,10 @@ public class CommonsZipParser extends AbstractParser {
 
     @Override
     public void destroy() {
+        // closes the channel as well
         Utils.close(mZipFile);
         mZipFile = null;
+        mChannel = null;
         mEntries = null;
     }
 
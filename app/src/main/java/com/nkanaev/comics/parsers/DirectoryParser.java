@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -62,14 +63,28 @@ public class DirectoryParser extends AbstractParser {
         return new FileInputStream(mFiles.get(num));
     }
 
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+        File file = mFiles.get(num);
+        return Utils.mapFile(file, 0, file.length());
+    }
+
     @Override
     public Map getPageMetaData(int num) throws IOException {
         parse();
         Map m = new HashMap();
         m.put(Parser.PAGEMETADATA_KEY_NAME,mFiles.get(num).getName());
+        m.put(Parser.PAGEMETADATA_KEY_SIZE,mFiles.get(num).length());
         return m;
     }
 
+    // plain files
+    @Override
+    public boolean canProbePages() {
+        return true;
+    }
+
     @Override
     public String getType() {
         return TYPE;
@@ -0,0 +1,134 @@
+package com.nkanaev.comics.parsers;
+
+import android.os.ParcelFileDescriptor;
+import com.nkanaev.comics.managers.Utils;
+import com.nkanaev.comics.parsers.ParserFactory.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * First block of a comic file, read once for type detection. All known
+ * signatures are matched against the same buffer in one pass, the block is
+ * then handed to the parser so it doesn't have to be read again.
+ */
+public class FileHeader {
+    // covers the tar magic at 257 and leaves room for future signatures
+    public static final int SIZE = 4096;
+
+    private static class Signature {
+        final Type type;
+        final int offset;
+        final byte[] magic;
+
+        Signature(Type type, int offset, int... magic) {
+            this.type = type;
+            this.offset = offset;
+            this.magic = new byte[magic.length];
+            for (int i = 0; i < magic.length; i++) {
+                this.magic[i] = (byte) magic[i];
+            }
+        }
+
+        boolean matches(byte[] data, int length) {
+            if (offset + magic.length > length)
+                return false;
+            for (int i = 0; i < magic.length; i++) {
+                if (data[offset + i] != magic[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    // first match wins, archive signatures before the weaker compressor ones
+    private static final Signature[] SIGNATURES = {
+            new Signature(Type.RAR, 0, 'R', 'a', 'r', '!', 0x1A, 0x07),
+            new Signature(Type.PDF, 0, '%', 'P', 'D', 'F', '-'),
+            new Signature(Type.SEVEN_Z, 0, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C),
+            new Signature(Type.ZIP, 0, 'P', 'K', 0x03, 0x04),
+            // spanned marker, empty archive
+            new Signature(Type.ZIP, 0, 'P', 'K', 0x07, 0x08),
+            new Signature(Type.ZIP, 0, 'P', 'K', 0x05, 0x06),
+            new Signature(Type.TAR, 257, 'u', 's', 't', 'a', 'r'),
+            new Signature(Type.TAR_GZIP, 0, 0x1F, 0x8B),
+            new Signature(Type.TAR_BZIP2, 0, 'B', 'Z', 'h'),
+            new Signature(Type.TAR_XZ, 0, 0xFD, '7', 'z', 'X', 'Z', 0x00),
+            new Signature(Type.TAR_ZSTD, 0, 0x28, 0xB5, 0x2F, 0xFD),
+            new Signature(Type.TAR_LZMA, 0, 0x5D, 0x00, 0x00),
+    };
+
+    private final byte[] mData;
+    private final int mLength;
+    private final Type mType;
+
+    private FileHeader(byte[] data, int length) {
+        mData = data;
+        mLength = length;
+        mType = match(data, length);
+    }
+
+    public static FileHeader read(File file) throws IOException {
+        byte[] data = new byte[SIZE];
+        int length = 0;
+        InputStream is = new FileInputStream(file);
+        try {
+            int read;
+            while (length < SIZE && (read = is.read(data, length, SIZE - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            Utils.close(is);
+        }
+        return new FileHeader(data, length);
+    }
+
+    // positional reads, leave the descriptor open and its offset untouched
+    public static FileHeader read(ParcelFileDescriptor descriptor) throws IOException {
+        // not closed, would close the descriptor as well
+        FileChannel channel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+        }
+        return new FileHeader(buffer.array(), buffer.position());
+    }
+
+    private static Type match(byte[] data, int length) {
+        for (Signature signature : SIGNATURES) {
+            if (signature.matches(data, length))
+                return signature.type;
+        }
+        // pre-posix tars have no magic, only a valid header checksum
+        if (length >= 512 && TarParser.isTarHeader(Arrays.copyOf(data, 512)))
+            return Type.TAR;
+        return null;
+    }
+
+    // detected type or null if no signature matched
+    public Type getType() {
+        return mType;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    // not a copy, don't modify
+    public byte[] getData() {
+        return mData;
+    }
+
+    // whole file as stream, header bytes are served from memory
+    public InputStream openStream(File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            fis.getChannel().position(mLength);
+        } catch (IOException e) {
+            Utils.close(fis);
+            throw e;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(mData, 0, mLength), fis);
+    }
+}
@@ -1,6 +1,7 @@
 package com.nkanaev.comics.parsers;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import android.util.Log;
@@ -13,7 +14,23 @@ public class LibSevenZParser extends AbstractParser {
     private static final String TAG = "LibSevenZParser";
     private List<ArchiveEntry> mEntries = null;
     private String mArchiveFormat = null;
-    private File mUncompressedFile = null;
+
+    // parser lifetime archive session, IInArchive is not thread safe
+    // so all access is serialized via mArchiveLock
+    private final Object mArchiveLock = new Object();
+    private RandomAccessFile mRandomAccessFile = null;
+    private RandomAccessFileInStream mStream = null;
+    private IInArchive mArchive = null;
+
+    // solid archives are unpacked in one sequential pass into a page cache
+    // as extractSlow() would decompress everything before each page again
+    private static final long SOLID_CACHE_QUOTA = 512L * 1024 * 1024;
+    private volatile Boolean mSolid = null;
+    private final Object mPageLock = new Object();
+    private File mPageCacheDir = null;
+    private File[] mPageFiles = null;
+    private boolean mSolidRunning = false;
+    private volatile boolean mSolidCancelled = false;
 
     public LibSevenZParser() {
         super(new Class[]{File.class});
@@ -24,6 +41,14 @@ public class LibSevenZParser extends AbstractParser {
         if (mEntries != null)
             return;
 
+        // reopened? archives don't even need to be opened
+        PageIndex pageIndex = loadPageIndex();
+        if (pageIndex != null) {
+            mArchiveFormat = pageIndex.getInfo();
+            mEntries = entriesFromPageIndex(pageIndex);
+            return;
+        }
+
         File file = (File) getSource();
         RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
         RandomAccessFileInStream stream = new RandomAccessFileInStream(randomAccessFile);
@@ -32,23 +57,12 @@ public class LibSevenZParser extends AbstractParser {
         ArchiveFormat format = archive.getArchiveFormat();
         mArchiveFormat = format.getMethodName();
 
-        if (Arrays.asList(ArchiveFormat.GZIP,ArchiveFormat.BZIP2,ArchiveFormat.LZMA).contains(format)) {
-            File folder = Utils.initCacheDirectory("tar");
-            File tarFile = new File(folder, "plain.tar");
-            toUncompressedFile(archive,tarFile);
-
-            mUncompressedFile = tarFile;
-            // close compressed file
-            Utils.close(archive);
-            Utils.close(stream);
-            Utils.close(randomAccessFile);
-            // open uncompressed file
-            randomAccessFile = new RandomAccessFile(mUncompressedFile, "r");
-            stream = new RandomAccessFileInStream(randomAccessFile);
-            archive = SevenZip.openInArchive(null, stream);
-            // append archive format metadata
-            format = archive.getArchiveFormat();
-            mArchiveFormat += ","+format.getMethodName();
+        // keep archive open for page extraction
+        synchronized (mArchiveLock) {
+            closeArchive();
+            mRandomAccessFile = randomAccessFile;
+            mStream = stream;
+            mArchive = archive;
         }
 
         int itemCount = archive.getNumberOfItems();
@@ -65,6 +79,8 @@ public class LibSevenZParser extends AbstractParser {
             ArchiveEntry entry = new ArchiveEntry();
             entry.path = path;
             entry.index = i;
+            Object size = archive.getProperty(i, PropID.SIZE);
+            entry.size = size instanceof Long ? (Long) size : -1;
             entries.add(entry);
         }
 
@@ -77,19 +93,78 @@ public class LibSevenZParser extends AbstractParser {
 
         mEntries = entries;
 
-        // cleanup
-        Utils.close(archive);
-        Utils.close(stream);
-        Utils.close(randomAccessFile);
+        pageIndex = createPageIndex();
+        if (pageIndex != null) {
+            pageIndex.setInfo(mArchiveFormat);
+            for (ArchiveEntry entry : entries) {
+                pageIndex.add(entry.path, entry.index, -1, entry.size);
+            }
+            pageIndex.save();
+        }
+    }
+
+    // returns the session archive, (re)opening it if needed
+    // must be called holding mArchiveLock
+    private IInArchive openArchive() throws IOException {
+        if (mArchive != null)
+            return mArchive;
+
+        File file = (File) getSource();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            RandomAccessFileInStream stream = new RandomAccessFileInStream(randomAccessFile);
+            mArchive = SevenZip.openInArchive(null, stream);
+            mStream = stream;
+            mRandomAccessFile = randomAccessFile;
+        } catch (SevenZipException e) {
+            Utils.close(randomAccessFile);
+            throw e;
+        }
+        return mArchive;
+    }
+
+    // must be called holding mArchiveLock
+    private void closeArchive() {
+        Utils.close(mArchive);
+        Utils.close(mStream);
+        Utils.close(mRandomAccessFile);
+        mArchive = null;
+        mStream = null;
+        mRandomAccessFile = null;
     }
 
     @Override
     public InputStream getPage(int num) throws IOException {
         parse();
+
+        if (isSolid()) {
+            File pageFile = awaitSolidPage(num);
+            if (pageFile != null)
+                return new FileInputStream(pageFile);
+            // not cached (quota, error), extract individually
+        }
+
+        return extractPage(num).getInputStream();
+    }
+
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+
+        if (isSolid()) {
+            File pageFile = awaitSolidPage(num);
+            if (pageFile != null)
+                return Utils.mapFile(pageFile, 0, pageFile.length());
+        }
+
+        return extractPage(num).getByteBuffer();
+    }
+
+    private ByteArrayOutputToInputStream extractPage(int num) throws IOException {
         int i = mEntries.get(num).index;
 
         ExtractOperationResult result = null;
-        ByteArrayOutputToInputStream bos = new ByteArrayOutputToInputStream();
+        final ByteArrayOutputToInputStream bos = new ByteArrayOutputToInputStream();
         ISequentialOutStream sos = new ISequentialOutStream(){
             @Override
             public int write(byte[] data) throws SevenZipException {
@@ -101,25 +176,199 @@ public class LibSevenZParser extends AbstractParser {
                 return data.length;
             }
         };
-        RandomAccessFileInStream stream = null;
-        IInArchive archive = null;
-        try {
-            File file = mUncompressedFile!=null ? mUncompressedFile : (File) getSource();
-            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
-            stream = new RandomAccessFileInStream(randomAccessFile);
-            archive = SevenZip.openInArchive(null, stream);
-            result = archive.extractSlow(i, sos);
-        } catch (SevenZipException e) {
-            Log.e(TAG, "extraction error", e);
-        } finally {
-            Utils.close(stream);
-            Utils.close(archive);
+        // reuse the session instead of reparsing archive headers per page
+        synchronized (mArchiveLock) {
+            try {
+                result = openArchive().extractSlow(i, sos);
+            } catch (SevenZipException e) {
+                Log.e(TAG, "extraction error", e);
+                // start over with a fresh session next time
+                closeArchive();
+            }
         }
         if (result != ExtractOperationResult.OK) {
             Log.e(TAG, String.valueOf(result));
         }
 
-        return bos.getInputStream();
+        return bos;
+    }
+
+    private boolean isSolid() {
+        if (mSolid != null)
+            return mSolid;
+
+        synchronized (mArchiveLock) {
+            if (mSolid == null) {
+                try {
+                    Object solid = openArchive().getArchiveProperty(PropID.SOLID);
+                    mSolid = Boolean.TRUE.equals(solid) && mEntries.size() > 1;
+                } catch (IOException e) {
+                    Log.e(TAG, "isSolid()", e);
+                    mSolid = false;
+                }
+            }
+            return mSolid;
+        }
+    }
+
+    // blocks until the bulk pass wrote the page, null if it never will
+    private File awaitSolidPage(int num) throws IOException {
+        synchronized (mPageLock) {
+            if (mPageFiles == null)
+                startSolidExtraction();
+            while (mPageFiles != null && mPageFiles[num] == null && mSolidRunning) {
+                try {
+                    mPageLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("waiting for page " + num);
+                }
+            }
+            return mPageFiles != null ? mPageFiles[num] : null;
+        }
+    }
+
+    // must be called holding mPageLock
+    private void startSolidExtraction() {
+        mPageCacheDir = Utils.initCacheDirectory("7z");
+        mPageFiles = new File[mEntries.size()];
+
+        final Map<Integer, Integer> pages = new HashMap<>();
+        final int[] indices = new int[mEntries.size()];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = mEntries.get(i).index;
+            pages.put(indices[i], i);
+        }
+        // unpack in archive order, the way the solid stream is laid out
+        Arrays.sort(indices);
+
+        long quota = Math.min(SOLID_CACHE_QUOTA, mPageCacheDir.getUsableSpace() / 2);
+        final SolidExtractCallback callback = new SolidExtractCallback(mPageCacheDir, pages, quota);
+        mSolidCancelled = false;
+        mSolidRunning = true;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mArchiveLock) {
+                    try {
+                        openArchive().extract(indices, false, callback);
+                    } catch (IOException e) {
+                        if (!mSolidCancelled)
+                            Log.e(TAG, "solid extraction stopped", e);
+                        // start over with a fresh session next time
+                        closeArchive();
+                    } finally {
+                        callback.cleanup();
+                    }
+                }
+                synchronized (mPageLock) {
+                    mSolidRunning = false;
+                    mPageLock.notifyAll();
+                }
+            }
+        }, TAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private class SolidExtractCallback implements IArchiveExtractCallback {
+        private final File mFolder;
+        private final Map<Integer, Integer> mPages;
+        private final long mQuota;
+        private long mWritten = 0;
+        private int mPage = -1;
+        private File mFile = null;
+        private OutputStream mOut = null;
+
+        public SolidExtractCallback(File folder, Map<Integer, Integer> pages, long quota) {
+            mFolder = folder;
+            mPages = pages;
+            mQuota = quota;
+        }
+
+        @Override
+        public ISequentialOutStream getStream(int index, ExtractAskMode extractAskMode) throws SevenZipException {
+            checkCancelled();
+            Integer page = mPages.get(index);
+            if (extractAskMode != ExtractAskMode.EXTRACT || page == null)
+                return null;
+
+            mPage = page;
+            mFile = new File(mFolder, page + ".page");
+            try {
+                mOut = new BufferedOutputStream(new FileOutputStream(mFile));
+            } catch (IOException e) {
+                throw new SevenZipException(e);
+            }
+            return new ISequentialOutStream() {
+                @Override
+                public int write(byte[] data) throws SevenZipException {
+                    checkCancelled();
+                    mWritten += data.length;
+                    if (mWritten > mQuota)
+                        throw new SevenZipException("page cache quota exceeded");
+                    try {
+                        mOut.write(data);
+                    } catch (IOException e) {
+                        throw new SevenZipException(e);
+                    }
+                    return data.length;
+                }
+            };
+        }
+
+        @Override
+        public void prepareOperation(ExtractAskMode extractAskMode) {
+        }
+
+        @Override
+        public void setOperationResult(ExtractOperationResult result) throws SevenZipException {
+            if (mOut == null)
+                return;
+
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                throw new SevenZipException(e);
+            } finally {
+                mOut = null;
+            }
+
+            if (result != ExtractOperationResult.OK) {
+                Log.e(TAG, mFile + " " + result);
+                mFile.delete();
+                return;
+            }
+
+            synchronized (mPageLock) {
+                if (mPageFiles != null)
+                    mPageFiles[mPage] = mFile;
+                mPageLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void setTotal(long total) {
+        }
+
+        @Override
+        public void setCompleted(long complete) throws SevenZipException {
+            checkCancelled();
+        }
+
+        private void checkCancelled() throws SevenZipException {
+            if (mSolidCancelled)
+                throw new SevenZipException("extraction cancelled");
+        }
+
+        // drop a partially written page after an aborted pass
+        public void cleanup() {
+            if (mOut == null)
+                return;
+            Utils.close(mOut);
+            mOut = null;
+            mFile.delete();
+        }
     }
 
     @Override
@@ -138,6 +387,8 @@ public class LibSevenZParser extends AbstractParser {
         parse();
         Map m = new HashMap();
         m.put(Parser.PAGEMETADATA_KEY_NAME,mEntries.get(num).path);
+        if (mEntries.get(num).size >= 0)
+            m.put(Parser.PAGEMETADATA_KEY_SIZE,mEntries.get(num).size);
         return m;
     }
 
@@ -145,13 +396,24 @@ public class LibSevenZParser extends AbstractParser {
     public void destroy() {
         super.destroy();
 
+        // bulk pass holds the archive lock until it notices
+        mSolidCancelled = true;
+        synchronized (mArchiveLock) {
+            closeArchive();
+        }
+        synchronized (mPageLock) {
+            mSolidRunning = false;
+            mPageFiles = null;
+            mPageLock.notifyAll();
+        }
+        if (mPageCacheDir != null) {
+            Utils.rmDir(mPageCacheDir);
+            mPageCacheDir = null;
+        }
+        mSolid = null;
+
         mEntries.clear();
         mEntries = null;
-        // delete cached if exists
-        if (mUncompressedFile != null) {
-            Utils.rmDir(mUncompressedFile.getParentFile());
-            mUncompressedFile = null;
-        }
     }
 
     public static boolean isAvailable() {
@@ -166,7 +428,21 @@ public class LibSevenZParser extends AbstractParser {
     private class ArchiveEntry {
         public int index;
         public String path;
+        public long size = -1;
     }
+
+    private List<ArchiveEntry> entriesFromPageIndex(PageIndex pageIndex) {
+        List<ArchiveEntry> entries = new ArrayList<>(pageIndex.size());
+        for (PageIndex.Entry e : pageIndex.getEntries()) {
+            ArchiveEntry entry = new ArchiveEntry();
+            entry.path = e.name;
+            entry.index = e.index;
+            entry.size = e.size;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
 /*
     private class SequentialOutStream extends ByteArrayOutputStream implements ISequentialOutStream {
         OutputStream outputStream;
@@ -202,30 +478,12 @@ public class LibSevenZParser extends AbstractParser {
 
             return in;
         }
-    }
 
-    static private void toUncompressedFile(IInArchive archive, File file) throws IOException {
-        OutputStream outStream = new FileOutputStream(file);
-        ExtractOperationResult result = null;
-        ISequentialOutStream sos = new ISequentialOutStream(){
-            @Override
-            public int write(byte[] data) throws SevenZipException {
-                try {
-                    outStream.write(data);
-                } catch (IOException e) {
-                    throw new SevenZipException(e);
-                }
-                return data.length;
-            }
-        };
-        try {
-            result = archive.extractSlow(0, sos);
-        } finally {
-            Utils.close(outStream);
-            Utils.close(archive);
-        }
-        if (result != ExtractOperationResult.OK) {
-            Log.e(TAG, String.valueOf(result));
+        public ByteBuffer getByteBuffer() {
+            // wrap protected byte buffer, no copy
+            ByteBuffer buffer = ByteBuffer.wrap(this.buf, 0, this.count);
+            this.buf = new byte[0];
+            return buffer;
         }
     }
 }
@@ -0,0 +1,497 @@
+package com.nkanaev.comics.parsers;
+
+import com.nkanaev.comics.managers.ByteBufferInputStream;
+import com.nkanaev.comics.managers.IgnoreCaseComparator;
+import com.nkanaev.comics.managers.Utils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Zip parser for CBZ working on the archive directly. The central directory is
+ * mapped and parsed into primitive arrays, entry names are only decoded when needed.
+ * STORED pages are served as mapped slices, DEFLATED ones are inflated in one go
+ * into an array of the known size using pooled Inflaters, or inflated while read
+ * when requested as stream.
+ * Supports ZIP64, works on all API levels. Archives with pages in other methods
+ * (deflate64, bzip2 ...) are handed to CommonsZipParser on Oreo+.
+ */
+public class MappedZipParser extends AbstractParser {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_ENCRYPTED = 1;
+    private static final int MAX_POOLED_INFLATERS = 4;
+
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mChannel = null;
+    // entry names are decoded from here on demand
+    private ByteBuffer mCentralDirectory = null;
+
+    // one slot per central directory entry
+    private int mEntryCount = 0;
+    private int[] mNameOffsets;
+    private int[] mNameLengths;
+    private int[] mFlags;
+    private int[] mMethods;
+    private long[] mCompressedSizes;
+    private long[] mSizes;
+    private long[] mLocalHeaderOffsets;
+    // read from local headers on first access, -1 until then
+    private long[] mDataOffsets;
+
+    // central directory entry per page, sorted
+    private int[] mPages = null;
+    // takes over if pages use compression methods other than stored/deflated
+    private AbstractParser mFallback = null;
+
+    private final ArrayDeque<PooledInflater> mInflaters = new ArrayDeque<>();
+
+    public MappedZipParser() {
+        super(new Class[]{File.class});
+    }
+
+    @Override
+    public synchronized void parse() throws IOException {
+        if (mPages != null)
+            return;
+
+        readPages();
+        if (!Utils.isOreoOrLater())
+            return;
+        for (int i : mPages) {
+            if (mMethods[i] != METHOD_STORED && mMethods[i] != METHOD_DEFLATED) {
+                openFallback();
+                return;
+            }
+        }
+    }
+
+    private void openFallback() throws IOException {
+        CommonsZipParser parser = new CommonsZipParser();
+        parser.setSource(getSource());
+        parser.setHeader(getHeader());
+        try {
+            parser.parse();
+        } catch (IOException e) {
+            parser.destroy();
+            throw e;
+        }
+        mFallback = parser;
+        close();
+        mCentralDirectory = null;
+    }
+
+    private void readPages() throws IOException {
+        File file = (File) getSource();
+        mRandomAccessFile = new RandomAccessFile(file, "r");
+        mChannel = mRandomAccessFile.getChannel();
+        try {
+            readCentralDirectory();
+        } catch (IOException e) {
+            close();
+            throw e;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            close();
+            throw new IOException("corrupt zip file " + file, e);
+        }
+
+        // reopened? skip decoding and sorting names
+        PageIndex pageIndex = loadPageIndex();
+        if (pageIndex != null) {
+            int[] pages = new int[pageIndex.size()];
+            for (int i = 0; pages != null && i < pages.length; i++) {
+                int index = pageIndex.get(i).index;
+                if (index < 0 || index >= mEntryCount)
+                    pages = null;
+                else
+                    pages[i] = index;
+            }
+            if (pages != null) {
+                mPages = pages;
+                return;
+            }
+        }
+
+        final String[] names = new String[mEntryCount];
+        ArrayList<Integer> pages = new ArrayList<>();
+        for (int i = 0; i < mEntryCount; i++) {
+            if ((mFlags[i] & FLAG_ENCRYPTED) != 0)
+                continue;
+            String name = entryName(i);
+            if (!name.endsWith("/") && Utils.isImage(name)) {
+                names[i] = name;
+                pages.add(i);
+            }
+        }
+
+        Collections.sort(pages, new IgnoreCaseComparator() {
+            @Override
+            public String stringValue(Object o) {
+                return names[(Integer) o];
+            }
+        });
+
+        int[] sorted = new int[pages.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = pages.get(i);
+        }
+        mPages = sorted;
+
+        pageIndex = createPageIndex();
+        if (pageIndex != null) {
+            for (int i : sorted) {
+                pageIndex.add(names[i], i, mLocalHeaderOffsets[i], mSizes[i]);
+            }
+            pageIndex.save();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = mChannel.size();
+        // end of central directory record is last, followed by a comment of up to 64k
+        int tailSize = (int) Math.min(length, EOCD_SIZE + 0xffff);
+        ByteBuffer tail = map(length - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0)
+            throw new IOException("no zip end of central directory found");
+
+        long entries = tail.getShort(eocd + 10) & 0xffff;
+        long cdSize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long cdOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+        // ZIP64, actual values are in the zip64 end of central directory record
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            ByteBuffer record = map(tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (record.getInt(0) != ZIP64_EOCD_SIGNATURE)
+                throw new IOException("invalid zip64 end of central directory");
+            entries = record.getLong(32);
+            cdSize = record.getLong(40);
+            cdOffset = record.getLong(48);
+        }
+        if (cdOffset < 0 || cdSize < 0 || cdOffset + cdSize > length)
+            throw new IOException("invalid zip central directory");
+
+        ByteBuffer cd = map(cdOffset, cdSize);
+        int capacity = (int) Math.min(entries, cdSize / CENTRAL_HEADER_SIZE);
+        mNameOffsets = new int[capacity];
+        mNameLengths = new int[capacity];
+        mFlags = new int[capacity];
+        mMethods = new int[capacity];
+        mCompressedSizes = new long[capacity];
+        mSizes = new long[capacity];
+        mLocalHeaderOffsets = new long[capacity];
+
+        int n = 0, position = 0;
+        while (n < capacity && position + CENTRAL_HEADER_SIZE <= cd.limit()) {
+            if (cd.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new IOException("invalid zip central directory header at " + (cdOffset + position));
+
+            long compressedSize = cd.getInt(position + 20) & ZIP64_MAGIC;
+            long size = cd.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = cd.getShort(position + 28) & 0xffff;
+            int extraLength = cd.getShort(position + 30) & 0xffff;
+            int commentLength = cd.getShort(position + 32) & 0xffff;
+            long localHeaderOffset = cd.getInt(position + 42) & ZIP64_MAGIC;
+            int nameOffset = position + CENTRAL_HEADER_SIZE;
+
+            // zip64 extra field lists only the values that overflowed, in this order
+            int extra = nameOffset + nameLength;
+            int extraEnd = extra + extraLength;
+            while ((size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) &&
+                    extra + 4 <= extraEnd) {
+                int id = cd.getShort(extra) & 0xffff;
+                int dataSize = cd.getShort(extra + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = cd.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC)
+                        localHeaderOffset = cd.getLong(field);
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+
+            mFlags[n] = cd.getShort(position + 8) & 0xffff;
+            mMethods[n] = cd.getShort(position + 10) & 0xffff;
+            mCompressedSizes[n] = compressedSize;
+            mSizes[n] = size;
+            mLocalHeaderOffsets[n] = localHeaderOffset;
+            mNameOffsets[n] = nameOffset;
+            mNameLengths[n] = nameLength;
+            n++;
+            position = extraEnd + commentLength;
+        }
+
+        mEntryCount = n;
+        mDataOffsets = new long[n];
+        Arrays.fill(mDataOffsets, -1);
+        mCentralDirectory = cd;
+    }
+
+    private ByteBuffer map(long offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE)
+            throw new IOException("zip region too large to map");
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // utf-8, like java.util.zip does by default
+    private String entryName(int i) throws IOException {
+        byte[] name = new byte[mNameLengths[i]];
+        ByteBuffer cd = mCentralDirectory.duplicate();
+        cd.position(mNameOffsets[i]);
+        cd.get(name);
+        return new String(name, "UTF-8");
+    }
+
+    private long dataOffset(int i) throws IOException {
+        synchronized (mDataOffsets) {
+            if (mDataOffsets[i] >= 0)
+                return mDataOffsets[i];
+        }
+
+        // local name/extra lengths may differ from the central directory ones
+        ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        long position = mLocalHeaderOffsets[i];
+        while (header.hasRemaining()) {
+            if (mChannel.read(header, position + header.position()) < 0)
+                throw new EOFException("unexpected end of zip");
+        }
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new IOException("invalid zip local header for " + entryName(i));
+        long offset = position + LOCAL_HEADER_SIZE +
+                (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+
+        synchronized (mDataOffsets) {
+            mDataOffsets[i] = offset;
+        }
+        return offset;
+    }
+
+    @Override
+    public int numPages() throws IOException {
+        parse();
+        if (mFallback != null)
+            return mFallback.numPages();
+        return mPages.length;
+    }
+
+    @Override
+    public InputStream getPage(int num) throws IOException {
+        parse();
+        if (mFallback != null)
+            return mFallback.getPage(num);
+        int i = mPages[num];
+        if (mMethods[i] != METHOD_DEFLATED)
+            return new ByteBufferInputStream(getPageBuffer(num));
+
+        // probing a header only inflates what is read
+        ByteBuffer data = map(dataOffset(i), mCompressedSizes[i]);
+        final PooledInflater inflater = acquireInflater();
+        return new InflaterInputStream(new ByteBufferInputStream(data), inflater.mInflater, 8192) {
+            private boolean mEof = false;
+            private boolean mReleased = false;
+
+            // nowrap mode may need an extra byte past the end, as in ZipFile
+            @Override
+            protected void fill() throws IOException {
+                if (mEof)
+                    throw new EOFException("unexpected end of zip entry");
+                len = in.read(buf, 0, buf.length);
+                if (len < 0) {
+                    buf[0] = 0;
+                    len = 1;
+                    mEof = true;
+                }
+                inf.setInput(buf, 0, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if (!mReleased) {
+                    mReleased = true;
+                    releaseInflater(inflater);
+                }
+            }
+        };
+    }
+
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+        if (mFallback != null)
+            return mFallback.getPageBuffer(num);
+        int i = mPages[num];
+        ByteBuffer data = map(dataOffset(i), mCompressedSizes[i]);
+        switch (mMethods[i]) {
+            case METHOD_STORED:
+                return data;
+            case METHOD_DEFLATED:
+                if (mSizes[i] > Integer.MAX_VALUE)
+                    throw new IOException("zip entry too large " + entryName(i));
+                byte[] out = new byte[(int) mSizes[i]];
+                PooledInflater inflater = acquireInflater();
+                try {
+                    inflater.inflate(data, out);
+                } finally {
+                    releaseInflater(inflater);
+                }
+                return ByteBuffer.wrap(out);
+            default:
+                throw new IOException("unsupported zip compression method " + mMethods[i] + " for " + entryName(i));
+        }
+    }
+
+    private PooledInflater acquireInflater() {
+        PooledInflater inflater;
+        synchronized (mInflaters) {
+            inflater = mInflaters.poll();
+        }
+        return inflater != null ? inflater : new PooledInflater();
+    }
+
+    private void releaseInflater(PooledInflater inflater) {
+        inflater.reset();
+        synchronized (mInflaters) {
+            if (mInflaters.size() < MAX_POOLED_INFLATERS) {
+                mInflaters.push(inflater);
+                return;
+            }
+        }
+        inflater.end();
+    }
+
+    /**
+     * Raw deflate Inflater with its own input chunk buffer, reused across pages.
+     */
+    private static class PooledInflater {
+        private final Inflater mInflater = new Inflater(true);
+        private final byte[] mBuffer = new byte[64 * 1024];
+
+        public void inflate(ByteBuffer in, byte[] out) throws IOException {
+            int written = 0;
+            boolean dummyFed = false;
+            try {
+                while (written < out.length && !mInflater.finished()) {
+                    if (mInflater.needsInput()) {
+                        int len = Math.min(mBuffer.length, in.remaining());
+                        if (len > 0) {
+                            in.get(mBuffer, 0, len);
+                            mInflater.setInput(mBuffer, 0, len);
+                        } else if (!dummyFed) {
+                            // nowrap mode may need an extra byte past the end, see Inflater docs
+                            mBuffer[0] = 0;
+                            mInflater.setInput(mBuffer, 0, 1);
+                            dummyFed = true;
+                        } else {
+                            break;
+                        }
+                    }
+                    int inflated = mInflater.inflate(out, written, out.length - written);
+                    if (inflated == 0 && mInflater.needsDictionary())
+                        throw new IOException("zip entry needs preset dictionary");
+                    written += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(e);
+            }
+            if (written < out.length)
+                throw new EOFException("unexpected end of zip entry");
+        }
+
+        public void reset() {
+            mInflater.reset();
+        }
+
+        public void end() {
+            mInflater.end();
+        }
+    }
+
+    @Override
+    public Map getPageMetaData(int num) throws IOException {
+        parse();
+        if (mFallback != null)
+            return mFallback.getPageMetaData(num);
+        int i = mPages[num];
+        Map m = new HashMap();
+        m.put(Parser.PAGEMETADATA_KEY_NAME, entryName(i));
+        m.put(Parser.PAGEMETADATA_KEY_SIZE, mSizes[i]);
+        return m;
+    }
+
+    // stored pages are mapped, deflated page streams only inflate what is read
+    @Override
+    public boolean canProbePages() throws IOException {
+        parse();
+        if (mFallback != null)
+            return mFallback.canProbePages();
+        return true;
+    }
+
+    @Override
+    public String getType() {
+        AbstractParser fallback = mFallback;
+        return fallback != null ? fallback.getType() : "MappedZip";
+    }
+
+    private void close() {
+        Utils.close(mChannel);
+        Utils.close(mRandomAccessFile);
+        mChannel = null;
+        mRandomAccessFile = null;
+    }
+
+    @Override
+    public synchronized void destroy() {
+        close();
+        mCentralDirectory = null;
+        mPages = null;
+        if (mFallback != null) {
+            mFallback.destroy();
+            mFallback = null;
+        }
+        synchronized (mInflaters) {
+            for (PooledInflater inflater : mInflaters) {
+                inflater.end();
+            }
+            mInflaters.clear();
+        }
+    }
+}
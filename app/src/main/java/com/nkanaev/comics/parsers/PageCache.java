@@ -0,0 +1,186 @@
+package com.nkanaev.comics.parsers;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import androidx.preference.PreferenceManager;
+import com.nkanaev.comics.MainApplication;
+import com.nkanaev.comics.R;
+import com.nkanaev.comics.managers.Utils;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Transcoded pages (e.g. jp2 recoded to jpeg) of a comic file. Library comics use
+ * the persistent "pages" cache folder, files are named after path, size and
+ * modification time of the comic plus page number, so a changed comic simply misses.
+ * The folder is held below a byte quota by removing least recently used pages.
+ * Comics without a file (intents) get a private folder that is removed on close().
+ */
+public class PageCache {
+    private static final String TAG = "PageCache";
+    private static final String FOLDER = "pages";
+    private static final String EXTENSION = ".jpg";
+    private static final int DEFAULT_QUOTA_MB = 256;
+
+    // bytes in persistent folder, -1 until first counted
+    private static long mUsed = -1;
+
+    private final File mDir;
+    private final String mPrefix;
+    private final boolean mPersistent;
+
+    private PageCache(File dir, String prefix, boolean persistent) {
+        mDir = dir;
+        mPrefix = prefix;
+        mPersistent = persistent;
+    }
+
+    // falls back to a private cache if persistent caching is disabled or file is null
+    public static PageCache open(File file) {
+        if (file == null || getQuota() <= 0)
+            return new PageCache(Utils.initCacheDirectory("jp2"), "", false);
+        return new PageCache(Utils.getPersistentCacheDirectory(FOLDER), prefix(file), true);
+    }
+
+    private static String prefix(File file) {
+        return Utils.MD5(file.getAbsolutePath()) + "-" +
+                Long.toHexString(file.length()) + "-" +
+                Long.toHexString(file.lastModified()) + "-";
+    }
+
+    // quota in bytes, 0 disables persistent caching
+    public static long getQuota() {
+        try {
+            int mb = PreferenceManager.getDefaultSharedPreferences(MainApplication.getAppContext()).getInt(
+                    MainApplication.getAppContext().getString(R.string.preferences_page_cache_size_key),
+                    DEFAULT_QUOTA_MB);
+            return Math.max(0, mb) * 1024L * 1024L;
+        } catch (Exception e) {
+            Log.e(TAG, "getQuota()", e);
+        }
+        return DEFAULT_QUOTA_MB * 1024L * 1024L;
+    }
+
+    private File pageFile(int num) {
+        return new File(mDir, mPrefix + num + EXTENSION);
+    }
+
+    public boolean contains(int num) {
+        return pageFile(num).isFile();
+    }
+
+    // null if not cached, marks the page as recently used
+    public File get(int num) {
+        File file = pageFile(num);
+        if (!file.canRead())
+            return null;
+        if (mPersistent)
+            file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    public void put(int num, Bitmap bitmap) throws IOException {
+        File file = pageFile(num);
+        // unique temp name, another instance may cache the same comic
+        File tempFile = File.createTempFile(mPrefix + num + "-", ".tmp", mDir);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            // png is lossless, but pretty big, jpeg 95 is ruffly 1/4 the size
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos))
+                throw new IOException("could not compress page " + num);
+            fos.close();
+            fos = null;
+            long oldLength = file.length();
+            if (!tempFile.renameTo(file))
+                throw new IOException("could not rename " + tempFile);
+            if (mPersistent)
+                added(file.length() - oldLength);
+        } finally {
+            Utils.close(fos);
+            tempFile.delete();
+        }
+    }
+
+    public void close() {
+        if (mPersistent)
+            return;
+        // delete in background
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Utils.rmDir(mDir);
+            }
+        }).start();
+    }
+
+    private static synchronized void added(long bytes) {
+        if (mUsed < 0) {
+            mUsed = 0;
+            for (File f : listPersistent())
+                mUsed += f.length();
+        } else {
+            mUsed += bytes;
+        }
+        long quota = getQuota();
+        if (mUsed > quota)
+            trim(quota);
+    }
+
+    // least recently used go first
+    private static void trim(long quota) {
+        File[] files = listPersistent();
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        mUsed = 0;
+        for (int i = 0; i < files.length; i++) {
+            // sort on a snapshot, readers touch files concurrently
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+            mUsed += files[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+        for (int i = 0; i < order.length && mUsed > quota; i++) {
+            File f = files[order[i]];
+            long length = f.length();
+            if (f.delete())
+                mUsed -= length;
+        }
+        Log.d(TAG, "trimmed to " + mUsed + " bytes");
+    }
+
+    private static File[] listPersistent() {
+        File[] files = Utils.getPersistentCacheDirectory(FOLDER).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(EXTENSION);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+
+    // remove all cached pages of a comic file, e.g. when it vanished from library
+    public static void delete(File file) {
+        final String prefix = Utils.MD5(file.getAbsolutePath()) + "-";
+        File[] files = Utils.getPersistentCacheDirectory(FOLDER).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        synchronized (PageCache.class) {
+            for (int i = 0; files != null && i < files.length; i++) {
+                long length = files[i].length();
+                if (files[i].delete() && mUsed >= 0)
+                    mUsed -= length;
+            }
+        }
+    }
+}
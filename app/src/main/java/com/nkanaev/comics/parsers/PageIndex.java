@@ -0,0 +1,166 @@
+package com.nkanaev.comics.parsers;
+
+import android.util.Log;
+import com.nkanaev.comics.managers.Utils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Persistent listing of a comic's pages (sorted entry names, archive indices/offsets
+ * and sizes) as produced by a parser's parse() run. Stored per comic file and parser,
+ * keyed on path, size and modification time, so a changed file simply misses.
+ */
+public class PageIndex {
+    private static final String TAG = "PageIndex";
+    private static final String FOLDER = "index";
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public final String name;
+        // archive item index, -1 if unused by parser
+        public final int index;
+        // data offset in archive, -1 if unused by parser
+        public final long offset;
+        // uncompressed size, -1 if unknown
+        public final long size;
+
+        public Entry(String name, int index, long offset, long size) {
+            this.name = name;
+            this.index = index;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final File mFile;
+    private final String mKey;
+    private final long mLength;
+    private final long mLastModified;
+    private String mInfo = "";
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+
+    public PageIndex(File file, String key) {
+        this(file, key, file.length(), file.lastModified());
+    }
+
+    private PageIndex(File file, String key, long length, long lastModified) {
+        mFile = file;
+        mKey = key;
+        mLength = length;
+        mLastModified = lastModified;
+    }
+
+    public void add(String name, int index, long offset, long size) {
+        mEntries.add(new Entry(name, index, offset, size));
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public Entry get(int num) {
+        return mEntries.get(num);
+    }
+
+    // free form parser data e.g. archive format
+    public String getInfo() {
+        return mInfo;
+    }
+
+    public void setInfo(String info) {
+        mInfo = info != null ? info : "";
+    }
+
+    public static PageIndex load(File file, String key) {
+        File indexFile = indexFile(file, key);
+        if (!indexFile.isFile())
+            return null;
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (dis.readInt() != VERSION)
+                return null;
+            String path = dis.readUTF();
+            long length = dis.readLong();
+            long lastModified = dis.readLong();
+            // stale? file was changed or replaced
+            if (!path.equals(file.getAbsolutePath()) ||
+                    length != file.length() ||
+                    lastModified != file.lastModified())
+                return null;
+
+            PageIndex pageIndex = new PageIndex(file, key, length, lastModified);
+            pageIndex.setInfo(dis.readUTF());
+            int count = dis.readInt();
+            pageIndex.mEntries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                pageIndex.add(dis.readUTF(), dis.readInt(), dis.readLong(), dis.readLong());
+            }
+            return pageIndex;
+        } catch (Exception e) {
+            Log.e(TAG, "load() " + indexFile, e);
+            indexFile.delete();
+        } finally {
+            Utils.close(dis);
+        }
+        return null;
+    }
+
+    public void save() {
+        File indexFile = indexFile(mFile, mKey);
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream dos = null;
+        try {
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            dos.writeInt(VERSION);
+            dos.writeUTF(mFile.getAbsolutePath());
+            dos.writeLong(mLength);
+            dos.writeLong(mLastModified);
+            dos.writeUTF(mInfo);
+            dos.writeInt(mEntries.size());
+            for (Entry e : mEntries) {
+                dos.writeUTF(e.name);
+                dos.writeInt(e.index);
+                dos.writeLong(e.offset);
+                dos.writeLong(e.size);
+            }
+            dos.close();
+            dos = null;
+            // replace atomically, concurrent readers see old or new
+            if (!tempFile.renameTo(indexFile))
+                throw new IOException("could not rename " + tempFile);
+        } catch (Exception e) {
+            Log.e(TAG, "save() " + indexFile, e);
+            tempFile.delete();
+        } finally {
+            Utils.close(dos);
+        }
+    }
+
+    // remove all indices of a comic file, e.g. when it vanished from library
+    public static void delete(File file) {
+        final String prefix = Utils.MD5(file.getAbsolutePath()) + "-";
+        File[] files = Utils.getPersistentCacheDirectory(FOLDER).listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(prefix);
+            }
+        });
+        for (int i = 0; files != null && i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    private static File indexFile(File file, String key) {
+        File dir = Utils.getPersistentCacheDirectory(FOLDER);
+        return new File(dir, Utils.MD5(file.getAbsolutePath()) + "-" + key + ".idx");
+    }
+}
@@ -1,7 +1,10 @@
 package com.nkanaev.comics.parsers;
 
+import android.graphics.Bitmap;
+import android.graphics.Point;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 public interface Parser {
@@ -10,6 +13,9 @@ public interface Parser {
     static String PAGEMETADATA_KEY_WIDTH = "width";
     static String PAGEMETADATA_KEY_HEIGHT = "height";
     static String PAGEMETADATA_KEY_SIZE = "size";
+    // only present if known, true or false
+    static String PAGEMETADATA_KEY_GRAY = "gray";
+    static String PAGEMETADATA_KEY_OPAQUE = "opaque";
 
     void parse() throws IOException;
 
@@ -17,8 +23,25 @@ public interface Parser {
 
     InputStream getPage(int num) throws IOException;
 
+    // page content in one piece, mapped straight from storage where possible
+    ByteBuffer getPageBuffer(int num) throws IOException;
+
+    // page rendered by the parser itself (e.g. pdf), null if pages are encoded images
+    Bitmap getPageBitmap(int num) throws IOException;
+
+    // page ready for display, fitting into maxWidth x maxHeight (0 is unbounded) and
+    // the bitmap memory limit, config is a preference only and may be null
+    Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException;
+
     Map getPageMetaData(int num) throws IOException;
 
+    // page dimensions the parser knows w/o reading the page (e.g. pdf page tree), null if unknown
+    Point getPageDimensions(int num) throws IOException;
+
+    // page headers can be read w/o rendering pages or decompressing other ones (solid
+    // archives) or whole books, so probing all pages of a book stays cheap
+    boolean canProbePages() throws IOException;
+
     String getType();
 
     void destroy();
@@ -3,22 +3,25 @@ package com.nkanaev.comics.parsers;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Point;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import com.gemalto.jp2.JP2Decoder;
 import com.nkanaev.comics.BuildConfig;
 import com.nkanaev.comics.MainApplication;
+import com.nkanaev.comics.managers.ByteBufferInputStream;
+import com.nkanaev.comics.managers.DecodeBudget;
+import com.nkanaev.comics.managers.DecodeScheduler;
+import com.nkanaev.comics.managers.ImageProber;
 import com.nkanaev.comics.managers.Utils;
-import org.apache.commons.compress.archivers.ArchiveException;
-import org.apache.commons.compress.archivers.ArchiveStreamFactory;
-import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import com.nkanaev.comics.model.Storage;
 
 import java.io.*;
-import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -47,9 +50,16 @@ public class ParserFactory {
                 // wrap in Ignore wrapper
                 p = new IgnorePageRegExWrapper(p);
                 // wrap in MetaData wrapper
-                p = new CachingPageMetaDataParserWrapper(p);
-                // wrap in JP2 recoder
-                p = new CachingDecodeJP2ParserWrapper(p);
+                CachingPageMetaDataParserWrapper metaDataWrapper = new CachingPageMetaDataParserWrapper(p);
+                // library comics bring their page table from the last scan, read on first use
+                if (o instanceof String || o instanceof File)
+                    metaDataWrapper.setStoredPagesSource(o instanceof File ? (File) o : new File((String) o));
+                p = metaDataWrapper;
+                // wrap in JP2 recoder, library comics share a persistent page cache
+                File source = null;
+                if (o instanceof String || o instanceof File)
+                    source = o instanceof File ? (File) o : new File((String) o);
+                p = new CachingDecodeJP2ParserWrapper(p, source);
                 // wrap debug info
                 if (BuildConfig.DEBUG)
                     p = new DebugInfoParserWrapper(p);
@@ -61,19 +71,80 @@ public class ParserFactory {
         return null;
     }
 
+    private static List<Map> loadStoredPages(File file) {
+        try {
+            return Storage.getStorage(MainApplication.getAppContext()).listPages(file.getAbsoluteFile());
+        } catch (Exception e) {
+            Log.e("ParserFactory", "loadStoredPages", e);
+        }
+        return Collections.emptyList();
+    }
+
+    // reads page type and dimensions from the image header, for the library page table
+    public static Map probePageMetaData(Parser parser, int num) throws IOException {
+        CachingPageMetaDataParserWrapper p = findMetaDataCache(parser);
+        if (p == null)
+            return parser.getPageMetaData(num);
+        return p.probePageMetaData(num);
+    }
+
+    // metadata known w/o reading the page (cached, stored or told by the parser), null otherwise
+    public static Map knownPageMetaData(Parser parser, int num) throws IOException {
+        CachingPageMetaDataParserWrapper p = findMetaDataCache(parser);
+        if (p == null)
+            return null;
+        return p.knownPageMetaData(num);
+    }
+
+    // page as stored, metadata still unknown is probed from this very buffer,
+    // decoding it after probePageMetaData() fetches the page once only
+    public static ByteBuffer probePageBuffer(Parser parser, int num) throws IOException {
+        CachingPageMetaDataParserWrapper p = findMetaDataCache(parser);
+        if (p == null)
+            return parser.getPageBuffer(num);
+        return p.probePageBuffer(num);
+    }
+
+    // remembers a page property for the rest of the session and in the library page
+    // table, no-op w/o metadata caching
+    public static void putPageMetaData(Parser parser, int num, String key, Object value) {
+        CachingPageMetaDataParserWrapper p = findMetaDataCache(parser);
+        if (p != null)
+            p.putPageMetaData(num, key, value);
+    }
+
+    private static CachingPageMetaDataParserWrapper findMetaDataCache(Parser parser) {
+        Parser p = parser;
+        while (!(p instanceof CachingPageMetaDataParserWrapper)) {
+            if (p instanceof DebugInfoParserWrapper)
+                p = ((DebugInfoParserWrapper) p).mParser;
+            else if (p instanceof CachingDecodeJP2ParserWrapper)
+                p = ((CachingDecodeJP2ParserWrapper) p).mParser;
+            else
+                return null;
+        }
+        return (CachingPageMetaDataParserWrapper) p;
+    }
+
     private static Parser create(File file) throws Exception {
         // let's skip undesireables, keep the noise down
         if (!file.isDirectory() && !(file.isFile() && Utils.isArchive(file.getName())))
             return null;
 
-        Class parserClass = findParser(file);
-        Method canParseMethod = parserClass.getMethod("canParse", Class.class);
-        AbstractParser p = (AbstractParser) parserClass.getDeclaredConstructor().newInstance();
-        if ((boolean) canParseMethod.invoke(p, File.class)) {
-            p.setSource(file);
-            return p;
+        // read once, matched against all signatures and reused by the parser
+        FileHeader header = null;
+        if (file.isFile()) {
+            try {
+                header = FileHeader.read(file);
+            } catch (IOException e) {
+                Log.d("ParserFactory", "header", e);
+            }
         }
-        throw new UnsupportedOperationException("Parser " + parserClass.getCanonicalName() + " does not support opening File!");
+
+        AbstractParser p = findParser(file, header).create();
+        p.setSource(file);
+        p.setHeader(header);
+        return p;
     }
 
     private static Parser create(Intent intent) throws Exception {
@@ -86,23 +157,42 @@ public class ParserFactory {
             return create(new File(uri.getPath()));
         }
 
-        Class parserClass = findParser(intent);
-
-        AbstractParser p = (AbstractParser) parserClass.getDeclaredConstructor().newInstance();
-        if (p.canParse(File.class)) {
-            AbstractParser intentParser = new IntentWithTempFileParserWrapper(p);
-            intentParser.setSource(intent);
-            return intentParser;
+        // seekable documents are read in place by parsers that can, others get a temp copy
+        ParcelFileDescriptor descriptor = AbstractParser.seekableDescriptorFromIntent(intent);
+        AbstractParser p = null;
+        if (descriptor != null) {
+            try {
+                FileHeader header = FileHeader.read(descriptor);
+                p = findParser(intent, header, ParserRegistry.CAPABILITY_DESCRIPTOR).create();
+                p.setHeader(header);
+            } catch (IOException | UnsupportedOperationException e) {
+                Log.d("ParserFactory", "no descriptor parser for " + uri, e);
+                Utils.close(descriptor);
+                descriptor = null;
+            }
         }
+        // pipes and documents no descriptor parser took, a stream parser spares the temp copy
+        if (p == null) {
+            try {
+                p = findParser(intent, null, ParserRegistry.CAPABILITY_URI).create();
+                p.setSource(uri);
+            } catch (UnsupportedOperationException e) {
+                Log.d("ParserFactory", "no uri parser for " + uri, e);
+            }
+        }
+        if (p == null)
+            p = findParser(intent, null, ParserRegistry.CAPABILITY_FILE).create();
 
-        throw new UnsupportedOperationException("Parser " + parserClass.getCanonicalName() + " does not support opening File!");
+        AbstractParser intentParser = new IntentParserWrapper(p, descriptor);
+        intentParser.setSource(intent);
+        return intentParser;
     }
 
-    private static Class<? extends AbstractParser> findParser(Intent intent) {
+    private static ParserRegistry.Provider findParser(Intent intent, FileHeader header, int capabilities) {
         Uri uri = AbstractParser.uriFromIntent(intent);
         File file = new File(uri.getLastPathSegment());
         try {
-            return findParser(file);
+            return findParser(file, header, capabilities);
         } catch (UnsupportedOperationException e) {
             // lets retry below
         }
@@ -110,7 +200,7 @@ public class ParserFactory {
         String dummyName;
         if (intent.getType()!=null && (dummyName=Utils.dummyFileNameFromMimeType(intent.getType()))!=null)
             try {
-                return findParser(new File(dummyName));
+                return findParser(new File(dummyName), null, capabilities);
             } catch (UnsupportedOperationException e){
                 // throw error below
             }
@@ -118,135 +208,29 @@ public class ParserFactory {
         throw new UnsupportedOperationException("No parser found for file " + file +" mimeType " + intent.getType());
     }
 
-    private static Class<? extends AbstractParser> findParser(File file) {
+    private static ParserRegistry.Provider findParser(File file, FileHeader header) {
+        return findParser(file, header, ParserRegistry.CAPABILITY_FILE);
+    }
 
-        InputStream is = null;
+    private static ParserRegistry.Provider findParser(File file, FileHeader header, int capabilities) {
         Type type = null;
 
         // detect folder
-        if (file.isDirectory()) {
+        if (file.isDirectory())
             type = Type.DIR;
-        }
-        // parse file header for signature first, set type
-        else {
-            try {
-                is = new FileInputStream(file);
-                type = detectFileType(is);
-            } catch (Exception e) {
-                // ignore
-            } finally {
-                Utils.close(is);
-            }
-        }
+        // file signature first
+        else if (header != null)
+            type = header.getType();
 
         // no type so far? assume type by file extension/
         if (type == null)
             type = assumeFileType(file.getName());
 
-        if (type == Type.DIR) {
-            return DirectoryParser.class;
-        } else if (type == Type.ZIP) {
-            if (Utils.isOreoOrLater())
-                return CommonsZipParser.class;
-            // pretty much the only parser for pre-Oreo devices now
-            return ZipParser.class;
-        } else if (type == Type.RAR) {
-            // decodes Rar5+, faster than junrar
-            if (LibSevenZParser.isAvailable())
-                return LibSevenZParser.class;
-
-            if (!Utils.isOreoOrLater()) {
-                throw new UnsupportedOperationException("Rar only available on Oreo (API26) or later");
-            }
-            return RarParser.class;
-        } else if (type != null && type.toString().startsWith("TAR")) {
-            // faster bz,gz,lzma lib-7z implementation, also pre-Oreo compatible
-            if (LibSevenZParser.isAvailable() &&
-                    // enable for pre-Oreo, ignore unsupported br,xz,zstd
-                    ( (!Utils.isOreoOrLater() && !Arrays.asList(Type.TAR_BROTLI, Type.TAR_XZ, Type.TAR_ZSTD).contains(type) ) ||
-                            // prefer for bz,gz,lzma because faster on Oreo+
-                            Arrays.asList(Type.TAR_BZIP2, Type.TAR_GZIP, Type.TAR_LZMA).contains(type)))
-                return LibSevenZParser.class;
-
-            if (!Utils.isOreoOrLater()) {
-                throw new UnsupportedOperationException("Tar only available on Oreo (API26) or later");
-            }
-            return TarFileParser.class;
-        } else if (type == Type.SEVEN_Z) {
-            // faster lib-7z implementation
-            if (LibSevenZParser.isAvailable())
-                return LibSevenZParser.class;
-
-            if (!Utils.isOreoOrLater()) {
-                throw new UnsupportedOperationException("7zip only available on Oreo (API26) or later");
-            }
-            // TODO: random access SevenZFileParser throws CRC errors
-            return SevenZStreamParser.class;
-        } else if (type == Type.PDF) {
-            if (!Utils.isLollipopOrLater()) {
-                throw new UnsupportedOperationException("Pdf only available on Lollipop (API21) or later");
-            }
-            return PdfRendererParser.class;
-        }
-
         // no parser, no fun ;(
-        throw new UnsupportedOperationException("No parser found for file " + file);
-    }
-
-    private static Type detectFileType(InputStream is) {
-        if (!is.markSupported())
-            is = new BufferedInputStream(is);
-
-        try {
-            if (Utils.isRarStream(is))
-                return Type.RAR;
-            if (Utils.isPdfStream(is))
-                return Type.PDF;
-            if (Utils.isSevenZStream(is))
-                return Type.SEVEN_Z;
-            if (Utils.isZipStream(is))
-                return Type.ZIP;
-            if (Utils.isTarStream(is))
-                return Type.TAR;
-
-            // commons compress needs java.nio
-            if (Utils.isOreoOrLater())
-                try {
-                    String commonsType = ArchiveStreamFactory.detect(is);
-                    switch (commonsType) {
-                        case ArchiveStreamFactory.TAR:
-                            return Type.TAR;
-                        case ArchiveStreamFactory.ZIP:
-                            return Type.ZIP;
-                        case ArchiveStreamFactory.SEVEN_Z:
-                            return Type.SEVEN_Z;
-                    }
-                } catch (ArchiveException e) {
-                    Log.d("ParserFactory","detectFileType()",e);
-                }
+        if (type == null)
+            throw new UnsupportedOperationException("No parser found for file " + file);
 
-            if (Utils.isOreoOrLater())
-                try {
-                    String commonsCompress = CompressorStreamFactory.detect(is);
-                    switch (commonsCompress) {
-                        case CompressorStreamFactory.BZIP2:
-                            return Type.TAR_BZIP2;
-                        case CompressorStreamFactory.GZIP:
-                            return Type.TAR_GZIP;
-                        case CompressorStreamFactory.LZMA:
-                            return Type.TAR_LZMA;
-                        case CompressorStreamFactory.XZ:
-                            return Type.TAR_XZ;
-                        case CompressorStreamFactory.ZSTANDARD:
-                            return Type.TAR_ZSTD;
-                    }
-                } catch (CompressorException e) {
-                    Log.d("ParserFactory","detectFileType()",e);
-                }
-        } finally {
-            Utils.close(is);
-        }
-        return null;
+        return ParserRegistry.getInstance().find(type, capabilities);
     }
 
     private static Type assumeFileType(String fileName) {
@@ -274,18 +258,37 @@ public class ParserFactory {
         return null;
     }
 
-    private static class IntentWithTempFileParserWrapper extends AbstractParser {
+    // feeds intent documents to the parser, as seekable descriptor if given, streamed by
+    // uri for stream parsers, else as temp copy
+    private static class IntentParserWrapper extends AbstractParser {
         private AbstractParser mParser;
         private File mTempDir = null;
+        private ParcelFileDescriptor mDescriptor;
 
-        public IntentWithTempFileParserWrapper(AbstractParser parser) throws Exception {
+        public IntentParserWrapper(AbstractParser parser, ParcelFileDescriptor descriptor) throws Exception {
             super(new Class[]{Intent.class});
             mParser = parser;
+            mDescriptor = descriptor;
         }
 
         @Override
         public synchronized void parse() throws IOException {
-            createTempFile();
+            if (mDescriptor != null) {
+                if (mParser.getSource() == null)
+                    mParser.setSource(mDescriptor);
+            } else if (mParser.getSource() instanceof Uri) {
+                try {
+                    mParser.parse();
+                    return;
+                } catch (Exception | LinkageError e) {
+                    // archive features or classes the stream reader can't handle, copy after all
+                    Log.d("ParserFactory", "streaming " + mParser.getSource() + " failed", e);
+                    Utils.close(mParser);
+                    mParser = findParser((Intent) super.getSource(), null, ParserRegistry.CAPABILITY_FILE).create();
+                }
+            }
+            if (mDescriptor == null)
+                createTempFile();
             mParser.parse();
         }
 
@@ -301,12 +304,42 @@ public class ParserFactory {
             return mParser.getPage(num);
         }
 
+        @Override
+        public ByteBuffer getPageBuffer(int num) throws IOException {
+            parse();
+            return mParser.getPageBuffer(num);
+        }
+
+        @Override
+        public Bitmap getPageBitmap(int num) throws IOException {
+            parse();
+            return mParser.getPageBitmap(num);
+        }
+
+        @Override
+        public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+            parse();
+            return mParser.decodePage(num, maxWidth, maxHeight, config);
+        }
+
         @Override
         public Map getPageMetaData(int num) throws IOException {
             parse();
             return mParser.getPageMetaData(num);
         }
 
+        @Override
+        public Point getPageDimensions(int num) throws IOException {
+            parse();
+            return mParser.getPageDimensions(num);
+        }
+
+        @Override
+        public boolean canProbePages() throws IOException {
+            parse();
+            return mParser.canProbePages();
+        }
+
         @Override
         public String getType() {
             return mParser.getType();
@@ -341,6 +374,8 @@ public class ParserFactory {
             File tempFile = new File(mTempDir, Uri.encode(filename));
             InputStream is = MainApplication.getAppContext().getContentResolver().openInputStream(uri);
             Utils.copyToFile(is, tempFile);
+            // temp copies are unique, don't litter the page index cache
+            mParser.setPageIndexEnabled(false);
             mParser.setSource(tempFile);
         }
 
@@ -349,6 +384,8 @@ public class ParserFactory {
             // destroy wrapped parser
             Utils.close(mParser);
             mParser = null;
+            Utils.close(mDescriptor);
+            mDescriptor = null;
             Utils.rmDir(mTempDir);
         }
     }
@@ -358,6 +395,12 @@ public class ParserFactory {
         private boolean mFetchMeta = false;
         private HashMap<Integer, Map> mPagesMetaData = new HashMap();
         private ArrayList mPagesSeen = new ArrayList<Integer>();
+        // library page table, taken over into mPagesMetaData once verified
+        private HashMap<Integer, Map> mStoredPages = new HashMap();
+        // comic whose page table is read on the first metadata lookup, parsers opened
+        // for covers or page counts only never query the database
+        private File mStoredPagesSource = null;
+        private boolean mStoredPagesLoaded = false;
 
         public CachingPageMetaDataParserWrapper(Parser parser) {
             mParser = parser;
@@ -367,6 +410,91 @@ public class ParserFactory {
             return Integer.valueOf(num);
         }
 
+        public synchronized void setStoredPagesSource(File file) {
+            mStoredPagesSource = file;
+        }
+
+        private void setStoredPages(List<Map> pages) {
+            mStoredPages.clear();
+            for (int i = 0; i < pages.size(); i++) {
+                mStoredPages.put(key(i), pages.get(i));
+            }
+        }
+
+        // cached or stored metadata available, stored entries are checked against the
+        // actual entry name first (archive replaced, ignore pattern changed ...)
+        private synchronized boolean hasPageMetaData(int num) {
+            if (mPagesMetaData.containsKey(key(num)))
+                return true;
+            if (mStoredPagesSource != null && !mStoredPagesLoaded) {
+                setStoredPages(loadStoredPages(mStoredPagesSource));
+                mStoredPagesLoaded = true;
+            }
+            Map stored = mStoredPages.remove(key(num));
+            if (stored == null || stored.get(Parser.PAGEMETADATA_KEY_WIDTH) == null)
+                return false;
+
+            try {
+                Map in = mParser.getPageMetaData(num);
+                Object name = in.get(Parser.PAGEMETADATA_KEY_NAME);
+                Object storedName = stored.get(Parser.PAGEMETADATA_KEY_NAME);
+                if (name != null && !name.equals(storedName))
+                    return false;
+
+                // name and size are the parser's, keep them from being merged twice
+                Map pageData = new HashMap(stored);
+                pageData.remove(Parser.PAGEMETADATA_KEY_NAME);
+                if (in.containsKey(Parser.PAGEMETADATA_KEY_SIZE))
+                    pageData.remove(Parser.PAGEMETADATA_KEY_SIZE);
+                mPagesMetaData.put(key(num), pageData);
+                return true;
+            } catch (IOException e) {
+                Log.e("bubble2", "failed to verify stored metadata", e);
+            }
+            return false;
+        }
+
+        Map probePageMetaData(int num) throws IOException {
+            mFetchMeta = true;
+            if (!hasPageMetaData(num) && !initPageDimensions(num))
+                Utils.close(initPageMetaData(num));
+            return getPageMetaData(num);
+        }
+
+        Map knownPageMetaData(int num) throws IOException {
+            mFetchMeta = true;
+            if (!hasPageMetaData(num) && !initPageDimensions(num))
+                return null;
+            return getPageMetaData(num);
+        }
+
+        ByteBuffer probePageBuffer(int num) throws IOException {
+            mFetchMeta = true;
+            return getPageBuffer(num);
+        }
+
+        // known to the parser, spares reading (or rendering) the page
+        private synchronized boolean initPageDimensions(int num) throws IOException {
+            Point size = mParser.getPageDimensions(num);
+            if (size == null)
+                return false;
+            Map pageData = new HashMap();
+            pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, size.x);
+            pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, size.y);
+            mPagesMetaData.put(key(num), pageData);
+            return true;
+        }
+
+        @Override
+        public Point getPageDimensions(int num) throws IOException {
+            return mParser.getPageDimensions(num);
+        }
+
+        @Override
+        public boolean canProbePages() throws IOException {
+            return mParser.canProbePages();
+        }
+
         @Override
         public void parse() throws IOException {
             mParser.parse();
@@ -380,7 +508,7 @@ public class ParserFactory {
         @Override
         public InputStream getPage(int num) throws IOException {
             InputStream is = null;
-            if (mFetchMeta && !mPagesMetaData.containsKey(key(num)))
+            if (mFetchMeta && !hasPageMetaData(num))
                 is = initPageMetaData(num);
             else if (!mFetchMeta)
                 mPagesSeen.add(key(num));
@@ -388,39 +516,122 @@ public class ParserFactory {
             return is != null ? is : mParser.getPage(num);
         }
 
-        private synchronized InputStream initPageMetaData(int num) throws IOException {
-            Integer key = key(num);
+        @Override
+        public ByteBuffer getPageBuffer(int num) throws IOException {
+            ByteBuffer buffer = mParser.getPageBuffer(num);
+            if (mFetchMeta && !hasPageMetaData(num))
+                initPageMetaData(num, buffer);
+            else if (!mFetchMeta)
+                mPagesSeen.add(key(num));
+
+            return buffer;
+        }
+
+        @Override
+        public Bitmap getPageBitmap(int num) throws IOException {
+            Bitmap bitmap = mParser.getPageBitmap(num);
+            // dimensions come for free, no need to wait for a metadata request
+            if (bitmap != null && !mPagesMetaData.containsKey(key(num))) {
+                Map pageData = new HashMap();
+                pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, bitmap.getWidth());
+                pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, bitmap.getHeight());
+                synchronized (this) {
+                    mPagesMetaData.put(key(num), pageData);
+                }
+            }
+            return bitmap;
+        }
+
+        @Override
+        public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+            Map pageData = hasPageMetaData(num) ? mPagesMetaData.get(key(num)) : null;
+            Object width = pageData != null ? pageData.get(Parser.PAGEMETADATA_KEY_WIDTH) : null;
+            Object height = pageData != null ? pageData.get(Parser.PAGEMETADATA_KEY_HEIGHT) : null;
+            if (!(width instanceof Integer) || !(height instanceof Integer))
+                return mParser.decodePage(num, maxWidth, maxHeight, config);
+
+            // dimensions known, decode once w/o reading bounds first
+            Bitmap rendered = getPageBitmap(num);
+            if (rendered != null)
+                return Utils.scaleBitmap(rendered, maxWidth, maxHeight);
+            return Utils.decodeByteBuffer(getPageBuffer(num), maxWidth, maxHeight, config,
+                    (Integer) width, (Integer) height);
+        }
+
+        // header flags are only certain if set, the rest is left to the decoder (see LocalComicHandler)
+        private static void putColorInfo(Map pageData, ImageProber.Info info) {
+            if (info.gray)
+                pageData.put(Parser.PAGEMETADATA_KEY_GRAY, true);
+            if (info.opaque)
+                pageData.put(Parser.PAGEMETADATA_KEY_OPAQUE, true);
+        }
+
+        // found out while decoding, kept for the session, library comics store it
+        synchronized void putPageMetaData(int num, String key, Object value) {
+            Map pageData = mPagesMetaData.get(key(num));
+            if (pageData != null)
+                pageData.put(key, value);
+            if (mStoredPagesSource == null)
+                return;
+            try {
+                Map page = new HashMap();
+                page.put(Parser.PAGEMETADATA_KEY_NAME, mParser.getPageMetaData(num).get(Parser.PAGEMETADATA_KEY_NAME));
+                page.put(key, value);
+                Storage.getStorage(MainApplication.getAppContext()).updatePage(mStoredPagesSource.getAbsoluteFile(), num, page);
+            } catch (Exception e) {
+                Log.e("ParserFactory", "putPageMetaData", e);
+            }
+        }
+
+        // whole page at hand, no need for buffering or reading through
+        private synchronized void initPageMetaData(int num, ByteBuffer buffer) {
             Map pageData = new HashMap();
-            CountingBufferedInputStream cbis = null;
             try {
-                InputStream is = mParser.getPage(num);
-                int limit = 5 * 1024 * 1024; //5MB
-                cbis = new CountingBufferedInputStream(is, limit);
-                cbis.mark(limit);
-                final BitmapFactory.Options options = new BitmapFactory.Options();
-                // read bitmap metadata w/o creating another in memory copy
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeStream(cbis, null, options);
-
-                if (options.outMimeType != null) {
-                    pageData.put(Parser.PAGEMETADATA_KEY_MIME, options.outMimeType);
-                    pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, options.outWidth);
-                    pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, options.outHeight);
+                ImageProber.Info info = ImageProber.probe(new ByteBufferInputStream(buffer.duplicate()));
+                if (info != null) {
+                    pageData.put(Parser.PAGEMETADATA_KEY_MIME, info.mime);
+                    pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, info.width);
+                    pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, info.height);
+                    putColorInfo(pageData, info);
+                } else {
+                    // format unknown to the prober, let BitmapFactory have a go
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    Utils.decodeByteBuffer(buffer, options);
+
+                    if (options.outMimeType != null) {
+                        pageData.put(Parser.PAGEMETADATA_KEY_MIME, options.outMimeType);
+                        pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, options.outWidth);
+                        pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, options.outHeight);
+                    }
                 }
 
                 Object size = mParser.getPageMetaData(num).get(Parser.PAGEMETADATA_KEY_SIZE);
-                // if no size set already, read til is end to determine size
-                if (size == null) {
-                    int skipped;
-                    long total = 0;
-                    byte[] dummy = new byte[4096];
-                    // just skipping doesn't work, need to read, fast anyway it seems
-                    while ((skipped = cbis.read(dummy)) > 0){
-                        total += skipped;
-                        //Log.d(""+num,""+total);
-                    }
-                    pageData.put(Parser.PAGEMETADATA_KEY_SIZE, cbis.getCount());
+                if (size == null)
+                    pageData.put(Parser.PAGEMETADATA_KEY_SIZE, buffer.remaining());
+            } catch (Exception e) {
+                // ignore, just log
+                Log.e("bubble2","failed to decode/fetch metadata",e);
+            }
+            mPagesMetaData.put(key(num), pageData);
+        }
+
+        private synchronized InputStream initPageMetaData(int num) throws IOException {
+            Integer key = key(num);
+            Map pageData = new HashMap();
+            BufferedInputStream bis = null;
+            try {
+                bis = new BufferedInputStream(mParser.getPage(num));
+                bis.mark(ImageProber.MARK_LIMIT);
+                // headers only, the stream is reset and handed on as page afterwards
+                ImageProber.Info info = ImageProber.probe(bis);
+                if (info != null) {
+                    pageData.put(Parser.PAGEMETADATA_KEY_MIME, info.mime);
+                    pageData.put(Parser.PAGEMETADATA_KEY_WIDTH, info.width);
+                    pageData.put(Parser.PAGEMETADATA_KEY_HEIGHT, info.height);
+                    putColorInfo(pageData, info);
                 }
+                // size comes from the archive listing, not worth reading the whole page for
             }
             catch (Exception e) {
                 // ignore, just log
@@ -429,14 +640,14 @@ public class ParserFactory {
             finally {
                 // keep memory buffered inputstreams
                 try {
-                    cbis.reset();
+                    bis.reset();
                 } catch (Exception ex){
                     // something went wrong (read over limit?)
-                    Utils.close(cbis);
-                    cbis = null;
+                    Utils.close(bis);
+                    bis = null;
                 }
                 mPagesMetaData.put(key, pageData);
-                return cbis;
+                return bis;
             }
         }
 
@@ -447,7 +658,7 @@ public class ParserFactory {
             Map<String, String> in = mParser.getPageMetaData(num);
             if (in == null || in.isEmpty())
                 in = new HashMap<>();
-            Map<String, String> in2 = mPagesMetaData.get(key(num));
+            Map<String, String> in2 = hasPageMetaData(num) ? mPagesMetaData.get(key(num)) : null;
             // init if still missing (just enabled?), for already requested pages only
             if (in2 == null && mPagesSeen.contains(key(num))) {
                 InputStream is = initPageMetaData(num);
@@ -484,12 +695,17 @@ public class ParserFactory {
 
     private static class CachingDecodeJP2ParserWrapper implements Parser {
         private Parser mParser;
-        private HashMap<Integer, Map> mPagesMetaData = new HashMap();
+        private Map<Integer, Map> mPagesMetaData = new ConcurrentHashMap<>();
+        // pages currently decoding, a page is decoded by one thread at a time
+        private final Set<Integer> mDecoding = new HashSet<>();
         private boolean mCachingEnabled = false;
         private CacheWriter mCacheWriter = null;
+        private final File mSource;
 
-        public CachingDecodeJP2ParserWrapper(Parser parser) {
+        // source file identifies the comic in the persistent cache, null if there is none
+        public CachingDecodeJP2ParserWrapper(Parser parser, File source) {
             mParser = parser;
+            mSource = source != null ? source.getAbsoluteFile() : null;
         }
 
         @Override
@@ -507,6 +723,71 @@ public class ParserFactory {
             return recodeAndCache(num);
         }
 
+        @Override
+        public ByteBuffer getPageBuffer(int num) throws IOException {
+            File cacheFile = cachedPageFile(num);
+            if (cacheFile != null)
+                return Utils.mapFile(cacheFile, 0, cacheFile.length());
+
+            ByteBuffer buffer = mParser.getPageBuffer(num);
+            if (!Utils.isKitKatOrLater() || !Utils.isJP2Buffer(buffer))
+                return buffer;
+
+            // needs recoding, take the stream route
+            InputStream is = recodeAndCache(num);
+            return is != null ? Utils.toByteBuffer(is) : null;
+        }
+
+        // rendered pages are never jp2
+        @Override
+        public Bitmap getPageBitmap(int num) throws IOException {
+            return mParser.getPageBitmap(num);
+        }
+
+        @Override
+        public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+            File cacheFile = cachedPageFile(num);
+            if (cacheFile != null)
+                return Utils.decodeByteBuffer(Utils.mapFile(cacheFile, 0, cacheFile.length()),
+                        maxWidth, maxHeight, config, 0, 0);
+
+            // BitmapFactory returns null on jp2
+            Bitmap bitmap = mParser.decodePage(num, maxWidth, maxHeight, config);
+            if (bitmap != null || !Utils.isKitKatOrLater())
+                return bitmap;
+
+            ByteBuffer buffer = mParser.getPageBuffer(num);
+            if (!Utils.isJP2Buffer(buffer))
+                return null;
+
+            // don't cache cover only (num=0) requests
+            if (!mCachingEnabled && num != 0)
+                mCachingEnabled = true;
+            startCacheWriter(num, mRunnerStatus.get());
+
+            // hand over the decoded bitmap directly, no png round trip
+            bitmap = decodeJP2Bitmap(new ByteBufferInputStream(buffer), num, true);
+            if (bitmap != null)
+                return Utils.scaleBitmap(bitmap, maxWidth, maxHeight);
+
+            // decoded by the cache writer meanwhile
+            cacheFile = cachedPageFile(num);
+            if (cacheFile != null)
+                return Utils.decodeByteBuffer(Utils.mapFile(cacheFile, 0, cacheFile.length()),
+                        maxWidth, maxHeight, config, 0, 0);
+            return null;
+        }
+
+        @Override
+        public Point getPageDimensions(int num) throws IOException {
+            return mParser.getPageDimensions(num);
+        }
+
+        @Override
+        public boolean canProbePages() throws IOException {
+            return mParser.canProbePages();
+        }
+
         @Override
         public Map getPageMetaData(int num) throws IOException {
             Map<String, String> in = mParser.getPageMetaData(num);
@@ -546,7 +827,16 @@ public class ParserFactory {
             if (!Utils.isJP2Stream(bis) || !Utils.isKitKatOrLater())
                 return bis;
 
-            // initialize cache only once, serve uncached until filled
+            startCacheWriter(num, status);
+
+            InputStream result = decodeJP2(bis, num, true);
+
+            // decode to memory
+            return result;
+        }
+
+        // initialize cache only once, serve uncached until filled
+        private void startCacheWriter(int num, RunnerStatus status) {
             if (mCachingEnabled &&
                     status != RunnerStatus.FINISHED &&
                     status != RunnerStatus.RUNNING) {
@@ -555,32 +845,120 @@ public class ParserFactory {
             } else if (status == RunnerStatus.RUNNING && mCacheWriter != null) {
                 mCacheWriter.reset(num);
             }
-
-            InputStream result = decodeJP2(bis, num, true);
-
-            // decode to memory
-            return result;
         }
 
-        private static synchronized Bitmap _decodeJP2(InputStream is){
+        // decodes within the shared memory budget, reader requests go first
+        private static Bitmap _decodeJP2(InputStream is, boolean foreground) throws IOException {
+            DecodeBudget budget = DecodeBudget.getInstance();
+            long bytes = -1;
+            try {
+                if (!is.markSupported())
+                    is = new BufferedInputStream(is);
+                bytes = estimateJP2DecodeSize(is);
+                budget.acquire(bytes, foreground);
+            } catch (InterruptedException e) {
+                Utils.close(is);
+                throw new InterruptedIOException("waiting for jp2 decode budget");
+            } catch (IOException e) {
+                Utils.close(is);
+                throw e;
+            }
+
             try {
                 return new JP2Decoder(is).decode();
-            }finally {
+            } finally {
+                budget.release(bytes, foreground);
                 Utils.close(is);
             }
         }
 
-        // synchronized to allow only one decoding at all times
-        // prevents app restarts because of memory outage
-        private synchronized InputStream decodeJP2(InputStream is, int num, boolean returnStream) {
+        // openjpeg holds 32bit per component (rgb) while decoding, plus the ARGB_8888 result,
+        // negative if unknown which makes the decode run alone
+        private static long estimateJP2DecodeSize(InputStream is) throws IOException {
+            // probe a copy of the head, the header box may lie beyond the mark limit
+            byte[] head = new byte[ImageProber.MARK_LIMIT];
+            int length = 0, read;
+            is.mark(ImageProber.MARK_LIMIT);
+            while (length < head.length && (read = is.read(head, length, head.length - length)) != -1)
+                length += read;
+            is.reset();
+            ImageProber.Info info = ImageProber.probe(new ByteArrayInputStream(head, 0, length));
+            if (info == null)
+                return -1;
+            return (long) info.width * info.height * (3 * 4 + 4);
+        }
+
+        // a page is decoded once, concurrent requests wait and use the cache afterwards
+        private void claimPage(int num) throws InterruptedIOException {
+            synchronized (mDecoding) {
+                while (mDecoding.contains(num)) {
+                    try {
+                        mDecoding.wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException("waiting for page " + num);
+                    }
+                }
+                mDecoding.add(num);
+            }
+        }
+
+        private void releasePage(int num) {
+            synchronized (mDecoding) {
+                mDecoding.remove(num);
+                mDecoding.notifyAll();
+            }
+        }
+
+        // stream requests come from the reader, the background cache writer doesn't need one
+        private InputStream decodeJP2(InputStream is, int num, boolean returnStream) throws IOException {
             InputStream cacheStream = cachedPageStream(num);
-            if (cacheStream != null) return cacheStream;
+            if (cacheStream != null) {
+                Utils.close(is);
+                return cacheStream;
+            }
 
-            Bitmap source = null, bitmap = null, scaled = null;
+            Bitmap bitmap = null;
             ByteArrayOutputStream bos = null;
             InputStream result = null;
             try {
-                source = _decodeJP2(is);
+                bitmap = decodeJP2Bitmap(is, num, returnStream);
+
+                // try again, skips the need to png-ize memory buffer
+                if ((cacheStream = cachedPageStream(num)) != null)
+                    return cacheStream;
+                if (bitmap == null) return null;
+
+                // just in case all the above failed we will return the bitmap from memory
+                if (returnStream) {
+                    bos = new ByteArrayOutputStream();
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 0 /*png is lossless*/, bos);
+                    byte[] byteArray = bos.toByteArray();
+                    result = new ByteArrayInputStream(byteArray);
+                }
+            } finally {
+                Utils.close(bos);
+                Utils.close(bitmap);
+            }
+
+            return result;
+        }
+
+        // decodes, limits to screen size and caches, returned bitmap belongs to the caller,
+        // null if another thread cached the page while we were waiting for it
+        private Bitmap decodeJP2Bitmap(InputStream is, int num, boolean foreground) throws IOException {
+            Bitmap source = null;
+            try {
+                claimPage(num);
+            } catch (IOException e) {
+                Utils.close(is);
+                throw e;
+            }
+            try {
+                if (cachedPageFile(num) != null)
+                    return null;
+
+                source = _decodeJP2(is, foreground);
+                is = null;
                 if (source == null) return null;
 
                 Map pageData = new HashMap();
@@ -592,89 +970,47 @@ public class ParserFactory {
                 // mDblTapScale in PageImageView is 1.5 currently, so set this as our limit
                 DisplayMetrics displayMetrics = MainApplication.getAppContext().getResources().getDisplayMetrics();
                 int max = Math.round(1.0f * Math.max(displayMetrics.widthPixels, displayMetrics.heightPixels));
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                //options.inPreferredConfig = Bitmap.Config.RGB_565;
-                float scale = max / (float) Math.max(source.getHeight(), source.getWidth());
-                if (scale < 1) {
-                    scaled = Bitmap.createScaledBitmap(source, Math.round(scale * source.getWidth()), Math.round(scale * source.getHeight()), true);
-                    source.recycle();
-                    bitmap = scaled;
-                    //bitmap.reconfigure(Math.round(scale * bitmap.getWidth()), Math.round(scale * bitmap.getHeight()), Bitmap.Config.RGB_565);
-                } else {
-                    bitmap = source;
-                }
+                Bitmap bitmap = Utils.scaleBitmap(source, max, max);
+                source = null;
 
                 // "always" cache the result to file system
                 if (mCachingEnabled)
                     cachePage(bitmap, num);
-                // try again, skips the need to png-ize memory buffer
-                if ((cacheStream = cachedPageStream(num)) != null)
-                    return cacheStream;
 
-                // just in case all the above failed we will return the bitmap from memory
-                if (returnStream) {
-                    bos = new ByteArrayOutputStream();
-                    bitmap.compress(Bitmap.CompressFormat.PNG, 0 /*png is lossless*/, bos);
-                    byte[] byteArray = bos.toByteArray();
-                    result = new ByteArrayInputStream(byteArray);
-                }
+                return bitmap;
             } finally {
                 Utils.close(is);
-                Utils.close(bos);
                 Utils.close(source);
-                Utils.close(bitmap);
-                Utils.close(scaled);
+                releasePage(num);
             }
+        }
 
-            return result;
+        // init late, plain comics never need it
+        private synchronized PageCache getCache() {
+            if (mCache == null)
+                mCache = PageCache.open(mSource);
+            return mCache;
         }
 
-        private synchronized void cachePage(Bitmap bitmap, int num) {
-            // init late
-            if (mCachedIndex == null)
-                mCachedIndex = new ConcurrentLinkedQueue<Integer>();
+        private void cachePage(Bitmap bitmap, int num) {
+            PageCache cache = getCache();
             // skip existing
-            if (bitmap == null || mCachedIndex.contains(num))
+            if (bitmap == null || cache.contains(num))
                 return;
 
-            String fileName = nameCacheFile(num);
-            Log.d(getClass().getCanonicalName(), "Caching -> " + fileName);
-
-            FileOutputStream fos = null;
+            Log.d(getClass().getCanonicalName(), "Caching -> " + num);
             try {
-                if (mCacheDir == null)
-                    mCacheDir = Utils.initCacheDirectory("jp2");
-                if (mCacheDir == null || !mCacheDir.exists())
-                    throw new IOException("CacheDir does not exist.");
-
-                File file = new File(mCacheDir, fileName);
-                fos = new FileOutputStream(file);
-                // png is lossless, but pretty big, jpeg 95 is ruffly 1/4 the size
-                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, fos);
-
-                // reached here? memorize success
-                mCachedIndex.add(num);
+                cache.put(num, bitmap);
             } catch (Exception e) {
                 Log.e(getClass().getCanonicalName(), "cachePage()", e);
-            } finally {
-                Utils.close(fos);
             }
         }
 
-        private String nameCacheFile(int num) {
-            return String.valueOf(num) + ".jpg";
-        }
-
         private File cachedPageFile(int num) {
-            if (mCacheDir == null ||
-                    mCachedIndex == null ||
-                    !mCachedIndex.contains(num)) return null;
-
-            File file = new File(mCacheDir, nameCacheFile(num));
-            if (file.canRead())
-                return file;
-
-            return null;
+            // private caches start out empty
+            if (mCache == null && mSource == null)
+                return null;
+            return getCache().get(num);
         }
 
         private InputStream cachedPageStream(int num) {
@@ -696,8 +1032,7 @@ public class ParserFactory {
 
         private AtomicReference<RunnerStatus> mRunnerStatus = new AtomicReference(RunnerStatus.STOP);
 
-        private ConcurrentLinkedQueue<Integer> mCachedIndex = null;
-        private File mCacheDir = null;
+        private PageCache mCache = null;
 
         private class CacheWriter implements Runnable {
             private int mOffset, newOffset;
@@ -730,6 +1065,10 @@ public class ParserFactory {
                         if (num >= max)
                             num = num - max;
 
+                        // cached in an earlier session or by the reader already
+                        if (getCache().contains(num))
+                            continue;
+
                         Log.d(getClass().getCanonicalName(), "Caching Loop -> " + num);
 
                         InputStream stream = mParser.getPage(num);
@@ -738,7 +1077,12 @@ public class ParserFactory {
                         if (!Utils.isJP2Stream(bis))
                             continue;
 
-                        decodeJP2(bis, num, false);
+                        DecodeScheduler.getInstance().acquire(DecodeScheduler.LANE_BACKGROUND);
+                        try {
+                            decodeJP2(bis, num, false);
+                        } finally {
+                            DecodeScheduler.getInstance().release();
+                        }
                     }
                     mRunnerStatus.compareAndSet(RunnerStatus.RUNNING, RunnerStatus.FINISHED);
                 } catch (Exception e) {
@@ -759,16 +1103,12 @@ public class ParserFactory {
             mRunnerStatus.set(RunnerStatus.STOP);
             Log.i("Runner", "state reset.");
 
-            // delete in background
-            final File folder = mCacheDir;
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    Utils.rmDir(folder);
-                }
-            }).start();
-            mCacheDir = null;
-            mCachedIndex = null;
+            // persistent pages stay for the next session
+            synchronized (this) {
+                if (mCache != null)
+                    mCache.close();
+                mCache = null;
+            }
 
             // destroy wrapped parser
             Utils.close(mParser);
@@ -828,12 +1168,41 @@ public class ParserFactory {
             return mParser.getPage(num);
         }
 
+        @Override
+        public ByteBuffer getPageBuffer(int num) throws IOException {
+            num = translate(num);
+            return mParser.getPageBuffer(num);
+        }
+
+        @Override
+        public Bitmap getPageBitmap(int num) throws IOException {
+            num = translate(num);
+            return mParser.getPageBitmap(num);
+        }
+
+        @Override
+        public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+            num = translate(num);
+            return mParser.decodePage(num, maxWidth, maxHeight, config);
+        }
+
         @Override
         public Map getPageMetaData(int num) throws IOException {
             num = translate(num);
             return mParser.getPageMetaData(num);
         }
 
+        @Override
+        public Point getPageDimensions(int num) throws IOException {
+            num = translate(num);
+            return mParser.getPageDimensions(num);
+        }
+
+        @Override
+        public boolean canProbePages() throws IOException {
+            return mParser.canProbePages();
+        }
+
         @Override
         public String getType() {
             return mParser.getType();
@@ -895,6 +1264,51 @@ public class ParserFactory {
             return is;
         }
 
+        @Override
+        public ByteBuffer getPageBuffer(int num) throws IOException {
+            long start = Utils.now();
+            mParser.parse();
+            ByteBuffer buffer = mParser.getPageBuffer(num);
+            String text = "getpagebuffer() " + Utils.milliSecondsSince(start);
+            mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("getPageBuffer",text));
+            return buffer;
+        }
+
+        @Override
+        public Bitmap getPageBitmap(int num) throws IOException {
+            long start = Utils.now();
+            mParser.parse();
+            Bitmap bitmap = mParser.getPageBitmap(num);
+            // most parsers return null here, keep the other timings then
+            if (bitmap != null) {
+                String text = "getpagebitmap() " + Utils.milliSecondsSince(start);
+                mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("getPageBitmap", text));
+            }
+            return bitmap;
+        }
+
+        @Override
+        public Bitmap decodePage(int num, int maxWidth, int maxHeight, Bitmap.Config config) throws IOException {
+            long start = Utils.now();
+            mParser.parse();
+            Bitmap bitmap = mParser.decodePage(num, maxWidth, maxHeight, config);
+            String text = "decodepage() " + Utils.milliSecondsSince(start);
+            mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("decodePage", text));
+            return bitmap;
+        }
+
+        @Override
+        public Point getPageDimensions(int num) throws IOException {
+            mParser.parse();
+            return mParser.getPageDimensions(num);
+        }
+
+        @Override
+        public boolean canProbePages() throws IOException {
+            mParser.parse();
+            return mParser.canProbePages();
+        }
+
         @Override
         public Map getPageMetaData(int num) throws IOException {
             Map<String, String> in = mParser.getPageMetaData(num);
@@ -929,50 +1343,4 @@ public class ParserFactory {
             mParser.destroy();
         }
     }
-
-    private static class CountingBufferedInputStream extends BufferedInputStream{
-        private long count;
-
-        public CountingBufferedInputStream(InputStream in) {
-            super(in);
-        }
-
-        public CountingBufferedInputStream(InputStream in, int size) {
-            super(in, size);
-        }
-
-        @Override
-        public synchronized int read() throws IOException {
-            int read = super.read();
-            if (read > 0)
-                count += read;
-            return read;
-        }
-
-        @Override
-        public synchronized int read(byte[] b, int off, int len) throws IOException {
-            int read = super.read(b, off, len);
-            if (read > 0)
-                count += read;
-            return read;
-        }
-
-        @Override
-        public synchronized long skip(long n) throws IOException {
-            long read = super.skip(n);
-            if (read > 0)
-                count += read;
-            return read;
-        }
-
-        @Override
-        public synchronized void reset() throws IOException {
-            super.reset();
-            count = 0;
-        }
-
-        public synchronized long getCount() {
-            return count;
-        }
-    }
 }
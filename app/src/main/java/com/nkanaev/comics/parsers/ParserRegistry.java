@@ -0,0 +1,268 @@
+package com.nkanaev.comics.parsers;
+
+import com.nkanaev.comics.managers.Utils;
+import com.nkanaev.comics.parsers.ParserFactory.Type;
+
+import java.util.*;
+
+/**
+ * Maps comic types to parser providers. Built once with the default set,
+ * more providers can be registered at runtime. Lookups are lock free, the
+ * highest priority available provider offering the required capabilities wins.
+ */
+public class ParserRegistry {
+    // opens File sources, required for file and temp copied intent sources
+    public static final int CAPABILITY_FILE = 1;
+    // getPageBuffer() maps pages instead of copying
+    public static final int CAPABILITY_PAGE_BUFFER = 1 << 1;
+    // first pages available before the archive is fully read
+    public static final int CAPABILITY_STREAMING = 1 << 2;
+    // opens seekable ParcelFileDescriptor sources, content:// documents w/o temp copy
+    public static final int CAPABILITY_DESCRIPTOR = 1 << 3;
+    // streams content:// uris from the start, documents w/o seekable descriptor parser
+    public static final int CAPABILITY_URI = 1 << 4;
+
+    public static abstract class Provider {
+        private final String mName;
+        private final int mPriority;
+        private final int mCapabilities;
+        private String mUnavailableReason = null;
+        private boolean mAvailabilityChecked = false;
+
+        public Provider(String name, int priority, int capabilities) {
+            mName = name;
+            mPriority = priority;
+            mCapabilities = capabilities;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public boolean hasCapabilities(int capabilities) {
+            return (mCapabilities & capabilities) == capabilities;
+        }
+
+        // override for API level or native library requirements, null if available
+        protected String checkAvailability() {
+            return null;
+        }
+
+        // checked once, availability doesn't change at runtime
+        public synchronized String getUnavailableReason() {
+            if (!mAvailabilityChecked) {
+                mUnavailableReason = checkAvailability();
+                mAvailabilityChecked = true;
+            }
+            return mUnavailableReason;
+        }
+
+        public boolean isAvailable() {
+            return getUnavailableReason() == null;
+        }
+
+        public abstract AbstractParser create();
+    }
+
+    private static ParserRegistry mInstance = null;
+
+    // copy on write, sorted by descending priority
+    private volatile Map<Type, Provider[]> mProviders = new EnumMap<>(Type.class);
+
+    public synchronized static ParserRegistry getInstance() {
+        if (mInstance == null) {
+            mInstance = new ParserRegistry();
+            mInstance.registerDefaults();
+        }
+        return mInstance;
+    }
+
+    public synchronized void register(Type type, Provider provider) {
+        Provider[] current = mProviders.get(type);
+        ArrayList<Provider> list = new ArrayList<>();
+        if (current != null)
+            list.addAll(Arrays.asList(current));
+        list.add(provider);
+        // stable, equal priorities keep registration order
+        Collections.sort(list, new Comparator<Provider>() {
+            @Override
+            public int compare(Provider a, Provider b) {
+                return Integer.compare(b.getPriority(), a.getPriority());
+            }
+        });
+
+        Map<Type, Provider[]> providers = new EnumMap<>(mProviders);
+        providers.put(type, list.toArray(new Provider[0]));
+        mProviders = providers;
+    }
+
+    public synchronized void unregister(Type type, Provider provider) {
+        Provider[] current = mProviders.get(type);
+        if (current == null)
+            return;
+        ArrayList<Provider> list = new ArrayList<>(Arrays.asList(current));
+        if (!list.remove(provider))
+            return;
+
+        Map<Type, Provider[]> providers = new EnumMap<>(mProviders);
+        providers.put(type, list.toArray(new Provider[0]));
+        mProviders = providers;
+    }
+
+    public Provider find(Type type, int capabilities) {
+        Provider[] providers = type != null ? mProviders.get(type) : null;
+        if (providers == null || providers.length < 1)
+            throw new UnsupportedOperationException("No parser registered for type " + type);
+
+        StringBuilder reasons = new StringBuilder();
+        for (Provider provider : providers) {
+            if (!provider.hasCapabilities(capabilities))
+                continue;
+            String reason = provider.getUnavailableReason();
+            if (reason == null)
+                return provider;
+            if (reasons.length() > 0)
+                reasons.append(", ");
+            reasons.append(reason);
+        }
+        throw new UnsupportedOperationException("No parser available for type " + type +
+                (reasons.length() > 0 ? ": " + reasons : ""));
+    }
+
+    private void registerDefaults() {
+        register(Type.DIR, new Provider("Directory", 100, CAPABILITY_FILE | CAPABILITY_PAGE_BUFFER) {
+            @Override
+            public AbstractParser create() {
+                return new DirectoryParser();
+            }
+        });
+
+        // reads central directory and pages right off the mapped file
+        register(Type.ZIP, new Provider("MappedZip", 100, CAPABILITY_FILE | CAPABILITY_PAGE_BUFFER) {
+            @Override
+            public AbstractParser create() {
+                return new MappedZipParser();
+            }
+        });
+        register(Type.ZIP, new Provider("CommonsZip", 50, CAPABILITY_FILE | CAPABILITY_PAGE_BUFFER | CAPABILITY_DESCRIPTOR) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isOreoOrLater() ? null : "CommonsZip only available on Oreo (API26) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new CommonsZipParser();
+            }
+        });
+        register(Type.ZIP, new Provider("Zip", 10, CAPABILITY_FILE) {
+            @Override
+            public AbstractParser create() {
+                return new ZipParser();
+            }
+        });
+
+        // lib-7z decodes Rar5+, faster than junrar
+        register(Type.RAR, newLibSevenZProvider());
+        register(Type.RAR, new Provider("Rar", 50, CAPABILITY_FILE) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isOreoOrLater() ? null : "Rar only available on Oreo (API26) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new RarParser();
+            }
+        });
+
+        // own header scan, works pre-Oreo as well, unpacks compressed
+        // tarballs in the background serving pages as they arrive
+        Provider tar = new Provider("Tar", 100, CAPABILITY_FILE | CAPABILITY_PAGE_BUFFER | CAPABILITY_STREAMING) {
+            @Override
+            public AbstractParser create() {
+                return new TarParser();
+            }
+        };
+        register(Type.TAR, tar);
+        // gzip via platform zlib
+        register(Type.TAR_GZIP, tar);
+        // other compressions via commons compress, needs java.nio
+        Provider commonsTar = new Provider("CommonsTar", 100, CAPABILITY_FILE | CAPABILITY_PAGE_BUFFER | CAPABILITY_STREAMING) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isOreoOrLater() ? null : "Tar compression only available on Oreo (API26) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new TarParser();
+            }
+        };
+        for (Type type : Type.values()) {
+            if (type.toString().startsWith("TAR_") && type != Type.TAR_GZIP)
+                register(type, commonsTar);
+        }
+
+        // reads content:// documents no descriptor parser took (pipes, unreadable headers, no
+        // descriptor provider) in one pass, spares the temp copy, uncompressed formats only
+        Provider uri = new Provider("CommonsUri", 10, CAPABILITY_PAGE_BUFFER | CAPABILITY_URI) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isOreoOrLater() ? null : "CommonsUri only available on Oreo (API26) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new CommonsUriParser();
+            }
+        };
+        register(Type.ZIP, uri);
+        register(Type.TAR, uri);
+
+        // faster lib-7z implementation
+        register(Type.SEVEN_Z, newLibSevenZProvider());
+        // pure java, reads forward only (random access, as in SevenZFileParser, throws CRC errors)
+        register(Type.SEVEN_Z, new Provider("SevenZStream", 50, CAPABILITY_FILE | CAPABILITY_DESCRIPTOR) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isOreoOrLater() ? null : "7zip only available on Oreo (API26) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new SevenZStreamParser();
+            }
+        });
+
+        register(Type.PDF, new Provider("PdfRenderer", 100, CAPABILITY_FILE | CAPABILITY_DESCRIPTOR) {
+            @Override
+            protected String checkAvailability() {
+                return Utils.isLollipopOrLater() ? null : "Pdf only available on Lollipop (API21) or later";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new PdfRendererParser();
+            }
+        });
+    }
+
+    private static Provider newLibSevenZProvider() {
+        return new Provider("Lib7z", 100, CAPABILITY_FILE) {
+            @Override
+            protected String checkAvailability() {
+                return LibSevenZParser.isAvailable() ? null : "lib7z could not be initialized";
+            }
+
+            @Override
+            public AbstractParser create() {
+                return new LibSevenZParser();
+            }
+        };
+    }
+}
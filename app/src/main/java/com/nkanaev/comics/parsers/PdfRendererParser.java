@@ -3,6 +3,7 @@ package com.nkanaev.comics.parsers;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Point;
 import android.graphics.pdf.PdfRenderer;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
@@ -17,74 +18,133 @@ import java.util.Map;
 public class PdfRendererParser extends AbstractParser {
     int mPageCount = 0;
     private HashMap<Integer, Map> mPagesMetaData = new HashMap<>();
+    // kept open for the parser's lifetime, PdfRenderer allows only one open page
+    // at a time so all access goes through mRendererLock
+    private final Object mRendererLock = new Object();
+    private PdfRenderer mRenderer = null;
+    private boolean mDestroyed = false;
 
     public PdfRendererParser() {
-        super(new Class[]{File.class});
+        super(new Class[]{File.class, ParcelFileDescriptor.class});
     }
 
-    // creating pdf parser is cheap, no use to reuse it
-    private PdfRenderer createPdfRenderer() throws IOException {
-        File file = (File) getSource();
-        ParcelFileDescriptor pd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
-        return new PdfRenderer(pd);
+    // call with mRendererLock held
+    private PdfRenderer getPdfRenderer() throws IOException {
+        if (mDestroyed)
+            throw new IOException("parser already destroyed");
+        if (mRenderer == null) {
+            Object source = getSource();
+            ParcelFileDescriptor pd;
+            if (source instanceof File)
+                pd = ParcelFileDescriptor.open((File) source, ParcelFileDescriptor.MODE_READ_ONLY);
+            else
+                pd = ((ParcelFileDescriptor) source).dup();
+            try {
+                // takes ownership of the descriptor
+                mRenderer = new PdfRenderer(pd);
+            } catch (IOException | RuntimeException e) {
+                Utils.close(pd);
+                throw e;
+            }
+        }
+        return mRenderer;
     }
 
     @Override
-    public synchronized void parse() throws IOException {
-        if (mPageCount>0) return;
+    public void parse() throws IOException {
+        synchronized (mRendererLock) {
+            if (mPageCount > 0) return;
 
-        PdfRenderer pr = createPdfRenderer();
-        mPageCount = pr.getPageCount();
-        Utils.close(pr);
+            mPageCount = getPdfRenderer().getPageCount();
+        }
     }
 
     @Override
-    public InputStream getPage(int num) throws IOException {
+    public Bitmap getPageBitmap(int num) throws IOException {
         long start = Utils.now();
-        // read image
-        ByteArrayOutputStream bos = null;
         Bitmap bitmap = null;
-        PdfRenderer pr = null;
-        PdfRenderer.Page page = null;
+        synchronized (mRendererLock) {
+            PdfRenderer.Page page = null;
+            try {
+                page = getPdfRenderer().openPage(num);
+                Point size = renderSize(page);
+                bitmap = Bitmap.createBitmap(
+                        size.x,
+                        size.y,
+                        Bitmap.Config.ARGB_8888
+                );
+                // make sure background is white by default
+                Canvas canvas = new Canvas(bitmap);
+                canvas.drawColor(Color.WHITE);
+                // render page onto it
+                page.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
+            } catch (RuntimeException e) {
+                Utils.close(bitmap);
+                throw new IOException("rendering page " + num + " failed", e);
+            } finally {
+                Utils.close(page);
+            }
+        }
+        if (BuildConfig.DEBUG) {
+            String text = "getPageBitmap(" + num + ") " + Utils.milliSecondsSince(start);
+            mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("debug-pdf", text));
+            Log.d("bubble2 pdf", text);
+        }
+        return bitmap;
+    }
+
+    // pdf sizes are relative to the document
+    // let's calculate a pixel size that fits on our device keeping the aspect ratio
+    private static Point renderSize(PdfRenderer.Page page) {
+        float aspect = (float) page.getWidth() / page.getHeight();
+        int maxSize = Utils.getMaxPageSize();
+        int w = aspect <= 1 ? maxSize : Math.round(aspect * maxSize);
+        int h = aspect >= 1 ? maxSize : Math.round(maxSize / aspect);
+        return new Point(w, h);
+    }
+
+    // size of getPageBitmap(), opening a page doesn't render it
+    @Override
+    public Point getPageDimensions(int num) throws IOException {
+        synchronized (mRendererLock) {
+            PdfRenderer.Page page = null;
+            try {
+                page = getPdfRenderer().openPage(num);
+                return renderSize(page);
+            } catch (RuntimeException e) {
+                throw new IOException("opening page " + num + " failed", e);
+            } finally {
+                Utils.close(page);
+            }
+        }
+    }
+
+    @Override
+    public boolean canProbePages() {
+        return true;
+    }
+
+    // stream consumers only (e.g. covers), viewers use getPageBitmap()
+    @Override
+    public InputStream getPage(int num) throws IOException {
+        Bitmap bitmap = getPageBitmap(num);
+        ByteArrayOutputStream bos = null;
         try {
-            pr = createPdfRenderer();
-            page = pr.openPage(num);
-            // pdf sizes are relative to the document
-            // let's calculate a pixel size that fits on our device keeping the aspect ratio
-            float aspect = (float) page.getWidth() / page.getHeight();
-            int maxSize = Utils.getMaxPageSize();
-            int w = aspect <= 1 ? maxSize : Math.round(aspect * maxSize);
-            int h = aspect >= 1 ? maxSize : Math.round(maxSize / aspect);
-            bitmap = Bitmap.createBitmap(
-                    w,
-                    h,
-                    Bitmap.Config.ARGB_8888
-            );
-            // make sure background is white by default
-            Canvas canvas = new Canvas(bitmap);
-            canvas.drawColor(Color.WHITE);
-            // render page onto it
-            page.render(bitmap, null, null, PdfRenderer.Page.RENDER_MODE_FOR_DISPLAY);
-
-            long start2 = Utils.now();
+            long start = Utils.now();
             // write to in-memory stream
             bos = new ByteArrayOutputStream();
             // jpg100 is way faster than png or webp, dunnowhy
-            bitmap.compress(Bitmap.CompressFormat.JPEG, 100 , bos);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, 100, bos);
             byte[] byteArray = bos.toByteArray();
             if (BuildConfig.DEBUG) {
-                String text = "getPage(" + num + ") " + Utils.milliSecondsSince(start) + ", recode " + Utils.milliSecondsSince(start2);
-                mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("debug-pdf",text));
+                String text = "getPage(" + num + ") recode " + Utils.milliSecondsSince(start);
+                mPagesMetaData.put(Integer.valueOf(num), Collections.singletonMap("debug-pdf", text));
                 Log.d("bubble2 pdf", text);
             }
             return new ByteArrayInputStream(byteArray);
         } finally {
-            // cleanup, close everything
-            Utils.close(page);
             Utils.close(bos);
             Utils.close(bitmap);
-            // in case we were closed during rendering
-            Utils.close(pr);
         }
     }
 
@@ -110,6 +170,12 @@ public class PdfRendererParser extends AbstractParser {
 
     @Override
     public void destroy() {
+        // waits for a running render to finish
+        synchronized (mRendererLock) {
+            mDestroyed = true;
+            Utils.close(mRenderer);
+            mRenderer = null;
+        }
         super.destroy();
     }
 }
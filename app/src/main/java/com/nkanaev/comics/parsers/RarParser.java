@@ -1,5 +1,6 @@
 package com.nkanaev.comics.parsers;
 
+import android.util.Log;
 import com.github.junrar.Archive;
 import com.github.junrar.exception.RarException;
 import com.github.junrar.rarfile.FileHeader;
@@ -9,14 +10,15 @@ import com.nkanaev.comics.managers.Utils;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class RarParser extends AbstractParser {
     private ArrayList<FileHeader> mHeaders = new ArrayList<>();
     private Archive mArchive;
     private boolean mParsedAlready = false;
-    private File mCacheDir;
-    private boolean mSolidFileExtracted = false;
+    // solid archives only, every parse() starts its own
+    private volatile SolidExtraction mExtraction;
 
     public RarParser() {
         super(new Class[]{InputStream.class, File.class});
@@ -34,6 +36,9 @@ public class RarParser extends AbstractParser {
             else
                 mArchive = new Archive((File) source);
             parseArchive();
+            // reopened after destroy(), an extractor still finishing up keeps its own state
+            if (mArchive.getMainHeader().isSolid())
+                mExtraction = new SolidExtraction(mArchive);
             mParsedAlready = true;
         } catch (RarException e) {
            throw new IOException("unable to open archive", e);
@@ -77,77 +82,185 @@ public class RarParser extends AbstractParser {
         // make sure we're parsed
         parse();
 
-        if (mArchive.getMainHeader().isSolid()) {
-            // solid archives require special treatment
-            synchronized (this) {
-                if (!mSolidFileExtracted && num != 0) {
-                    for (FileHeader h : mArchive.getFileHeaders()) {
-                        if (!h.isDirectory() && Utils.isImage(getName(h))) {
-                            getPageStream(h, true);
-                        }
-                    }
-                    mSolidFileExtracted = true;
+        FileHeader header = mHeaders.get(num);
+        SolidExtraction extraction = mExtraction;
+        if (extraction != null && mArchive.getMainHeader().isSolid()) {
+            // solid archives require special treatment, pages done already don't wait
+            File file = extraction.getFile(header);
+            if (file == null)
+                // a cover (num=0) only needs the archive up to its page
+                file = extraction.waitFor(header, num != 0);
+            return new FileInputStream(file);
+        }
+        return getPageStream(header);
+    }
+
+    // one front to back extraction of a solid archive by a background thread,
+    // finished pages are published in mFiles, the rest is guarded by the instance
+    private class SolidExtraction implements Runnable {
+        private final Archive mSolidArchive;
+        private final Map<FileHeader, File> mFiles = new ConcurrentHashMap<>();
+        private boolean mRunning = false;
+        private boolean mStopped = false;
+        private IOException mError = null;
+        // archive header positions, next to extract and last one needed
+        private int mPosition = 0;
+        private int mTarget = -1;
+        private File mCacheDir;
+
+        SolidExtraction(Archive archive) {
+            mSolidArchive = archive;
+        }
+
+        File getFile(FileHeader header) {
+            return mFiles.get(header);
+        }
+
+        synchronized File waitFor(FileHeader header, boolean all) throws IOException {
+            List<FileHeader> headers = mSolidArchive.getFileHeaders();
+            int position = headers.indexOf(header);
+            int target = all ? headers.size() - 1 : position;
+            if (target > mTarget)
+                mTarget = target;
+
+            File file;
+            while ((file = mFiles.get(header)) == null) {
+                if (mError != null)
+                    throw new IOException("unable to extract solid rar", mError);
+                if (position < 0 || position < mPosition)
+                    throw new FileNotFoundException("page " + getName(header) + " not extracted");
+                if (mStopped)
+                    throw new InterruptedIOException("rar parser destroyed");
+                if (!mRunning) {
+                    mRunning = true;
+                    new Thread(this).start();
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("waiting for page " + getName(header));
                 }
             }
+            return file;
         }
-        return getPageStream(mHeaders.get(num), mArchive.getMainHeader().isSolid());
-    }
 
-    private InputStream getPageStream(FileHeader header, boolean cache) throws IOException {
-        try {
-            synchronized (this) {
-                if (cache) {
-                    if (mCacheDir == null)
-                        initCacheDirectory(MainApplication.getAppContext().getExternalCacheDir());
+        @Override
+        public void run() {
+            List<FileHeader> headers = mSolidArchive.getFileHeaders();
+            try {
+                while (true) {
+                    FileHeader header;
+                    synchronized (this) {
+                        if (mStopped || mPosition > mTarget)
+                            break;
+                        header = headers.get(mPosition);
+                    }
 
-                    String name = getName(header);
-                    File cacheFile = new File(mCacheDir, Utils.MD5(name));
+                    File file = extract(header);
 
-                    if (cacheFile.exists()) {
-                        return new FileInputStream(cacheFile);
+                    synchronized (this) {
+                        if (file != null)
+                            mFiles.put(header, file);
+                        mPosition++;
+                        notifyAll();
                     }
+                }
+            } catch (Exception e) {
+                synchronized (this) {
+                    // closed archive on destroy() is expected
+                    if (!mStopped)
+                        Log.e("RarParser", "SolidExtractor", e);
+                    mError = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            } finally {
+                synchronized (this) {
+                    mRunning = false;
+                    notifyAll();
+                    // stop() left the cleanup to us
+                    if (mStopped)
+                        removeCacheDirectory();
+                }
+            }
+        }
+
+        // every entry is unpacked in order to keep the solid stream intact, only images are kept
+        private File extract(FileHeader header) throws Exception {
+            if (header.isDirectory())
+                return null;
 
-                    if (!cacheFile.exists()) {
-                        FileOutputStream os = new FileOutputStream(cacheFile);
-                        try {
-                            mArchive.extractFile(header, os);
-                        } catch (Exception e) {
-                            os.close();
-                            cacheFile.delete();
-                            throw e;
-                        }
-                        os.close();
+            String name = getName(header);
+            if (!Utils.isImage(name)) {
+                mSolidArchive.extractFile(header, new OutputStream() {
+                    @Override
+                    public void write(int b) {
                     }
 
-                    return new FileInputStream(cacheFile);
-                }
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                });
+                return null;
+            }
 
-                return new ByteArrayInputStream(Utils.toByteArray(mArchive.getInputStream(header)));
+            File cacheDir;
+            synchronized (this) {
+                if (mCacheDir == null)
+                    mCacheDir = initCacheDirectory(MainApplication.getAppContext().getExternalCacheDir());
+                cacheDir = mCacheDir;
+            }
+            // readers only ever see complete files
+            File cacheFile = new File(cacheDir, Utils.MD5(name));
+            File tempFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+            FileOutputStream os = new FileOutputStream(tempFile);
+            try {
+                mSolidArchive.extractFile(header, os);
+                os.close();
+                os = null;
+                if (!tempFile.renameTo(cacheFile))
+                    throw new IOException("could not rename " + tempFile);
+            } finally {
+                Utils.close(os);
+                tempFile.delete();
+            }
+            return cacheFile;
+        }
+
+        synchronized void stop() {
+            mStopped = true;
+            mFiles.clear();
+            notifyAll();
+            // a running extractor removes the files when it's done with the current one
+            if (!mRunning)
+                removeCacheDirectory();
+        }
+
+        private void removeCacheDirectory() {
+            if (mCacheDir != null) {
+                Utils.rmDir(mCacheDir);
+                mCacheDir = null;
             }
-        } catch (RarException e) {
-            throw new IOException("unable to parse rar");
         }
     }
 
+    private synchronized InputStream getPageStream(FileHeader header) throws IOException {
+        return new ByteArrayInputStream(Utils.toByteArray(mArchive.getInputStream(header)));
+    }
+
     @Override
     public Map getPageMetaData(int num) throws IOException {
         parse();
         Map m = new HashMap();
         m.put(Parser.PAGEMETADATA_KEY_NAME,mHeaders.get(num).getFileName());
+        m.put(Parser.PAGEMETADATA_KEY_SIZE,mHeaders.get(num).getFullUnpackSize());
         return m;
     }
 
     @Override
     public void destroy() {
         mParsedAlready = false;
-        mSolidFileExtracted = false;
-        if (mCacheDir != null) {
-            for (File f : mCacheDir.listFiles()) {
-                f.delete();
-            }
-            mCacheDir.delete();
-            mCacheDir = null;
-        }
+        SolidExtraction extraction = mExtraction;
+        if (extraction != null)
+            extraction.stop();
         Utils.close(mArchive);
     }
 
@@ -156,12 +269,13 @@ public class RarParser extends AbstractParser {
         return "Rar";
     }
 
-    private void initCacheDirectory(File cacheDirectory) {
+    private static File initCacheDirectory(File cacheDirectory) {
         String uuid = UUID.randomUUID().toString();
-        mCacheDir = new File(cacheDirectory, "rar-" + uuid);
-        if (!mCacheDir.exists()) {
-            boolean success = mCacheDir.mkdirs();
+        File cacheDir = new File(cacheDirectory, "rar-" + uuid);
+        if (!cacheDir.exists()) {
+            boolean success = cacheDir.mkdirs();
         }
+        return cacheDir;
     }
 
 }
@@ -1,10 +1,8 @@
 package com.nkanaev.comics.parsers;
 
 
-import android.content.res.AssetFileDescriptor;
-import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.util.Log;
-import com.nkanaev.comics.MainApplication;
 import com.nkanaev.comics.managers.IgnoreCaseComparator;
 import com.nkanaev.comics.managers.Utils;
 import org.apache.commons.compress.archivers.sevenz.SevenZArchiveEntry;
@@ -14,52 +12,122 @@ import java.io.*;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Pure java 7z parser. The archive stays open for the parser's lifetime and is
+ * read forward only with getNextEntry(), random access getInputStream() throws
+ * "Compressed data is corrupt" on repeated reads. Skipping whole 7z folders
+ * (compressed blocks) is free, so a page request decodes only the folder holding
+ * the page, from its start or the last read position, going back reopens the
+ * archive. Pages passed on the way are spooled to a cache folder, so later
+ * requests for them are plain file reads.
+ */
 public class SevenZStreamParser extends AbstractParser {
     private List<SevenZArchiveEntry> mEntries = null;
+    private SevenZFile mSevenZFile = null;
+    // archive order and folder number per entry (-1 w/o data)
+    private SevenZArchiveEntry[] mArchiveEntries = null;
+    private int[] mFolders = null;
+    private Map<SevenZArchiveEntry, Integer> mPositions = null;
+    // archive position of the current entry of mSevenZFile, reading on from there is free
+    private int mPosition = -1;
+
     private File mCacheDir = null;
-    private boolean mCachePopulated = false;
+    private final Map<SevenZArchiveEntry, File> mSpooled = new ConcurrentHashMap<>();
 
     public SevenZStreamParser() {
-        super(new Class[]{File.class});
+        super(new Class[]{File.class, ParcelFileDescriptor.class});
     }
 
     @Override
-    public void parse() throws IOException {
+    public synchronized void parse() throws IOException {
+        if (mEntries != null)
+            return;
+
+        SevenZFile sevenZFile = open();
+        try {
+            parse(sevenZFile);
+        } catch (IOException e) {
+            Utils.close(sevenZFile);
+            throw e;
+        }
+        mSevenZFile = sevenZFile;
+    }
+
+    private SevenZFile open() throws IOException {
         Object source = getSource();
         if (source instanceof File)
-            parse((File) source);
+            return from((File) source);
+        else if (source instanceof ParcelFileDescriptor)
+            return from((ParcelFileDescriptor) source);
         else
             throw new UnsupportedOperationException();
     }
 
-    protected void parse(File file) throws IOException {
-        SevenZFile sevenZFile = new SevenZFile(file);
-        parse(sevenZFile);
-    }
-
     protected void parse(SevenZFile sevenZFile) throws IOException {
-        if (sevenZFile != null && mEntries != null)
-            return;
-
-        sevenZFile = sevenZFile;
-        mEntries = new ArrayList<>();
-
+        List<SevenZArchiveEntry> entries = new ArrayList<>();
         for (SevenZArchiveEntry entry : sevenZFile.getEntries()) {
             if (entry.isDirectory()) {
                 continue;
             }
             if (Utils.isImage(entry.getName())) {
-                mEntries.add(entry);
+                entries.add(entry);
             }
         }
 
-        Collections.sort(mEntries, new IgnoreCaseComparator() {
+        Collections.sort(entries, new IgnoreCaseComparator() {
             @Override
             public String stringValue(Object o) {
                 return ((SevenZArchiveEntry) o).getName();
             }
         });
+
+        indexFolders(sevenZFile);
+        mEntries = entries;
+    }
+
+    // commons-compress doesn't expose folders, but stepping through the entries w/o reading
+    // decompresses nothing and hands all entries of a folder the same method configurations
+    private void indexFolders(SevenZFile sevenZFile) throws IOException {
+        List<SevenZArchiveEntry> archiveEntries = new ArrayList<>();
+        List<Integer> folders = new ArrayList<>();
+        int folderCount = 0;
+        mPositions = new HashMap<>();
+
+        Object method = null;
+        SevenZArchiveEntry entry;
+        while ((entry = sevenZFile.getNextEntry()) != null) {
+            int folder = -1;
+            if (entry.hasStream()) {
+                // unknown (null) counts as same folder, costs extra reads at worst
+                Object first = firstMethod(entry);
+                if (folderCount == 0 || (first != null && first != method)) {
+                    method = first;
+                    folderCount++;
+                }
+                folder = folderCount - 1;
+            }
+            mPositions.put(entry, archiveEntries.size());
+            archiveEntries.add(entry);
+            folders.add(folder);
+        }
+
+        mArchiveEntries = archiveEntries.toArray(new SevenZArchiveEntry[0]);
+        mFolders = new int[folders.size()];
+        for (int i = 0; i < mFolders.length; i++) {
+            mFolders[i] = folders.get(i);
+        }
+        // walked to the end, the first read reopens the archive
+        mPosition = mArchiveEntries.length;
+    }
+
+    private static Object firstMethod(SevenZArchiveEntry entry) {
+        Iterable methods = entry.getContentMethods();
+        if (methods == null)
+            return null;
+        Iterator it = methods.iterator();
+        return it.hasNext() ? it.next() : null;
     }
 
     @Override
@@ -68,10 +136,14 @@ public class SevenZStreamParser extends AbstractParser {
         return mEntries.size();
     }
 
-    private SevenZFile from(Uri uri) throws IOException {
-        AssetFileDescriptor afd = MainApplication.getAppContext().getContentResolver().openAssetFileDescriptor(uri, "r");
-        FileChannel fc = new FileInputStream(afd.getFileDescriptor()).getChannel();
-        return from(fc);
+    private SevenZFile from(ParcelFileDescriptor descriptor) throws IOException {
+        FileChannel fc = channelFromDescriptor(descriptor);
+        try {
+            return from(fc);
+        } catch (IOException e) {
+            Utils.close(fc);
+            throw e;
+        }
     }
 
     private SevenZFile from(SeekableByteChannel channel) throws IOException {
@@ -86,86 +158,91 @@ public class SevenZStreamParser extends AbstractParser {
 
     @Override
     public InputStream getPage(int num) throws IOException {
-        try {
-            // lazy parse
-            parse();
-
-            SevenZArchiveEntry needle = mEntries.get(num);
-            // repeated reads throw "org.tukaani.xz.CorruptedInputException: Compressed data is corrupt"
-            //return mSevenZFile.getInputStream(entry);
-            // as a workaround we reopen and read each entry by tself
-            //return getInputStream(entry);
-            // or not, too slow by far, so extract'n'cache
-
-            // populate cache (unless cover is requested, as in first parsing run)
-            synchronized (this) {
-                if (!mCachePopulated && num != 0) {
-                    SevenZFile sevenZFile;
-                    Object source = getSource();
-                    if (source instanceof Uri)
-                        sevenZFile = from((Uri) source);
-                    else
-                        sevenZFile = from((File) source);
-
-                    initCacheDirectory(MainApplication.getAppContext().getExternalCacheDir());
-                    // populate file cache
-                    SevenZArchiveEntry entry;
-                    while ((entry = sevenZFile.getNextEntry()) != null) {
-                        if (Utils.isImage(entry.getName())) {
-                            File cacheFile = new File(mCacheDir, Utils.MD5(entry.getName()));
-                            byte[] content = new byte[(int) entry.getSize()];
-                            sevenZFile.read(content);
-                            Utils.copyToFile(new ByteArrayInputStream(content), cacheFile);
-                            //Utils.copyToFile(sevenZFile.getInputStream(entry),cacheFile);
-                        }
-                    }
-                    mCachePopulated = true;
-                    Utils.close(sevenZFile);
-                }
-            }
+        // lazy parse
+        parse();
 
-            // try cache
-            if (mCacheDir != null && mCachePopulated) {
-                String name = needle.getName();
-                File cacheFile = new File(mCacheDir, Utils.MD5(name));
+        SevenZArchiveEntry needle = mEntries.get(num);
+        // spooled already, no need to wait for the archive
+        File file = mSpooled.get(needle);
+        if (file != null)
+            return new FileInputStream(file);
 
-                if (cacheFile.exists()) {
-                    return new FileInputStream(cacheFile);
-                }
-            }
-
-            // last chance, just read thru archive (very slow for file towards the end)
-            return getInputStream(needle);
+        try {
+            return new FileInputStream(spool(needle));
+        } catch (IOException e) {
+            Log.e("SevebZParser", "getPage", e);
+            throw e;
         } catch (Exception e) {
             Log.e("SevebZParser", "getPage", e);
             throw new IOException(e);
         }
     }
 
-    private InputStream getInputStream(SevenZArchiveEntry needle) throws IOException {
-        synchronized (this) {
-            SevenZFile sevenZFile;
-            Object source = getSource();
-            if (source instanceof Uri)
-                sevenZFile = from((Uri) source);
-            else
-                sevenZFile = from((File) source);
-
-            try {
-                // slow need to populate file cache
-                SevenZArchiveEntry entry;
-                while ((entry = sevenZFile.getNextEntry()) != null) {
-                    if (entry.getName().equals(needle.getName())) {
-                        byte[] content = new byte[(int) entry.getSize()];
-                        sevenZFile.read(content);
-                        return new ByteArrayInputStream(content);
-                    }
-                }
-            } finally {
-                Utils.close(sevenZFile);
+    // decodes the needle's folder up to the needle, keeping all pages read on the way
+    private synchronized File spool(SevenZArchiveEntry needle) throws IOException {
+        File file = mSpooled.get(needle);
+        if (file != null)
+            return file;
+        if (mSevenZFile == null)
+            throw new IOException("parser destroyed");
+
+        int target = mPositions.get(needle);
+        int folder = mFolders[target];
+        if (folder < 0)
+            throw new IOException(needle.getName() + " has no data in archive.");
+
+        if (mPosition >= target) {
+            Utils.close(mSevenZFile);
+            mSevenZFile = null;
+            mSevenZFile = open();
+            mPosition = -1;
+        }
+
+        // folders before the needle's are skipped w/o decoding, its own is decoded from
+        // its start anyway, so all of its pages up to the needle are taken along
+        try {
+            while (mPosition < target) {
+                SevenZArchiveEntry current = mSevenZFile.getNextEntry();
+                mPosition++;
+                SevenZArchiveEntry entry = mArchiveEntries[mPosition];
+                if (current == null || !current.getName().equals(entry.getName()))
+                    throw new IOException("archive changed at " + entry.getName());
+                if (mPosition == target || (mFolders[mPosition] == folder && !mSpooled.containsKey(entry) &&
+                        !entry.isDirectory() && Utils.isImage(entry.getName())))
+                    spoolEntry(entry);
+            }
+        } catch (IOException e) {
+            // position unknown, reopen next time
+            mPosition = mArchiveEntries.length;
+            throw e;
+        }
+        return mSpooled.get(needle);
+    }
+
+    // streams the current entry into the cache folder, a page is never held in memory as a whole
+    private void spoolEntry(SevenZArchiveEntry entry) throws IOException {
+        if (mCacheDir == null)
+            mCacheDir = Utils.initCacheDirectory("sev");
+
+        File cacheFile = new File(mCacheDir, Utils.MD5(entry.getName()));
+        File tempFile = new File(mCacheDir, cacheFile.getName() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tempFile);
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = mSevenZFile.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
             }
+            os.close();
+            os = null;
+            if (!tempFile.renameTo(cacheFile))
+                throw new IOException("could not rename " + tempFile);
+            mSpooled.put(entry, cacheFile);
+        } finally {
+            Utils.close(os);
+            tempFile.delete();
         }
-        throw new IOException(needle.getName() + " not found in archive.");
     }
 
     @Override
@@ -173,6 +250,8 @@ public class SevenZStreamParser extends AbstractParser {
         parse();
         Map m = new HashMap();
         m.put(Parser.PAGEMETADATA_KEY_NAME,mEntries.get(num).getName());
+        if (mEntries.get(num).hasStream())
+            m.put(Parser.PAGEMETADATA_KEY_SIZE,mEntries.get(num).getSize());
         return m;
     }
 
@@ -182,15 +261,16 @@ public class SevenZStreamParser extends AbstractParser {
     }
 
     @Override
-    public void destroy() {
+    public synchronized void destroy() {
         mEntries = null;
+        Utils.close(mSevenZFile);
+        mSevenZFile = null;
+        mArchiveEntries = null;
+        mFolders = null;
+        mPositions = null;
+        mPosition = -1;
+        mSpooled.clear();
         Utils.rmDir(mCacheDir);
         mCacheDir = null;
-        mCachePopulated = false;
-        mCacheDir = null;
-    }
-
-    private void initCacheDirectory(File cacheDirectory) {
-        mCacheDir = Utils.initCacheDirectory("sev");
     }
 }
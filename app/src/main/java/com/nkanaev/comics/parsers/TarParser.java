@@ -1,132 +1,636 @@
 package com.nkanaev.comics.parsers;
 
 
+import android.util.Log;
 import com.nkanaev.comics.managers.IgnoreCaseComparator;
 import com.nkanaev.comics.managers.Utils;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import com.nkanaev.comics.parsers.ParserFactory.Type;
 import org.apache.commons.compress.compressors.CompressorException;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
 
+/**
+ * Tar parser working on a one-time header scan. Only entry offsets and sizes are
+ * kept, pages are served via positional reads so memory use does not depend on
+ * archive size.
+ * Compressed tarballs are unpacked to the cache folder by a background thread,
+ * indexing headers as they pass. With a known page index, pages are available
+ * as soon as their bytes are unpacked, instead of after the whole archive.
+ * Scans the headers itself (ustar, GNU long names, pax path/size), which keeps it
+ * free of the Oreo+ java.nio.file requirements of commons' TarFile. Gzip is
+ * inflated by the platform, other compressions use commons compress on Oreo+.
+ */
 public class TarParser extends AbstractParser {
-    private List<TarEntry> mEntries = null;
+    private static final String TAG = "TarParser";
+    private static final int BLOCK_SIZE = 512;
+    // pax/longname headers larger than that are bogus
+    private static final int MAX_EXTENDED_HEADER_SIZE = 1024 * 1024;
 
-    private boolean mParsedAlready = false;
+    private File mUncompressedFile = null;
+    private String mCompression = "";
+    private RandomAccessFile mRandomAccessFile = null;
+    private FileChannel mChannel = null;
+    private List<PageIndex.Entry> mEntries = null;
 
-    private class TarEntry {
-        final TarArchiveEntry entry;
-        byte[] bytes;
-
-        public TarEntry(TarArchiveEntry entry, byte[] bytes) {
-            this.entry = entry;
-            this.bytes = bytes;
-        }
-    }
+    // progress of the background unpacking, guarded by mUnpackLock
+    private final Object mUnpackLock = new Object();
+    private long mUnpacked = 0;
+    private boolean mUnpackDone = false;
+    private IOException mUnpackError = null;
+    private volatile boolean mUnpackCancelled = false;
 
     public TarParser() {
         super(new Class[]{File.class});
     }
 
-    private TarArchiveInputStream initStream(File file) throws IOException {
-        String fileName = file.getName();
-        InputStream is = null;
+    public synchronized void parse() throws IOException {
+        if (mEntries != null)
+            return;
+
+        File file = (File) getSource();
+
+        // reopened? skip the header scan, offsets are known
+        PageIndex pageIndex = loadPageIndex();
+        List<PageIndex.Entry> entries = null;
+        if (pageIndex != null)
+            entries = new ArrayList<>(pageIndex.getEntries());
+
+        InputStream cis = openDecompressor(file);
+        if (cis != null) {
+            File folder = Utils.initCacheDirectory("tar");
+            mUncompressedFile = new File(folder, "plain.tar");
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(mUncompressedFile);
+                mRandomAccessFile = new RandomAccessFile(mUncompressedFile, "r");
+            } catch (IOException e) {
+                Utils.close(out);
+                Utils.close(cis);
+                throw e;
+            }
+
+            Unpacker unpacker = new Unpacker(cis, out);
+            synchronized (mUnpackLock) {
+                mUnpacked = 0;
+                mUnpackDone = false;
+                mUnpackError = null;
+            }
+            mUnpackCancelled = false;
+            new Thread(unpacker, TAG).start();
+
+            // no listing yet, it's complete once everything passed
+            if (entries == null) {
+                try {
+                    awaitUnpacked(Long.MAX_VALUE);
+                } catch (IOException e) {
+                    Utils.close(mRandomAccessFile);
+                    mRandomAccessFile = null;
+                    throw e;
+                }
+                entries = sortEntries(unpacker.getEntries());
+            }
+        } else {
+            mRandomAccessFile = new RandomAccessFile(file, "r");
+            if (entries == null)
+                entries = scanEntries(file);
+        }
+
+        if (pageIndex == null) {
+            pageIndex = createPageIndex();
+            if (pageIndex != null) {
+                pageIndex.setInfo(mCompression);
+                for (PageIndex.Entry entry : entries) {
+                    pageIndex.add(entry.name, entry.index, entry.offset, entry.size);
+                }
+                pageIndex.save();
+            }
+        }
+
+        mChannel = mRandomAccessFile.getChannel();
+        mEntries = entries;
+    }
+
+    // returns decompressing stream or null if file is a plain tar
+    private InputStream openDecompressor(File file) throws IOException {
+        // type detection read the header already, no need to probe again
+        FileHeader header = getHeader();
+        Type type = header != null ? header.getType() : null;
+        if (type == Type.TAR) {
+            mCompression = "";
+            return null;
+        }
 
-        is = new BufferedInputStream(new FileInputStream(file));
+        InputStream is = header != null ? header.openStream(file) : new FileInputStream(file);
+        BufferedInputStream bis = new BufferedInputStream(is);
         try {
-            if (Utils.isTGZ(fileName))
-                is = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.GZIP, is);
-            else if (Utils.isTBZ(fileName))
-                is = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.BZIP2, is);
-            else if (Utils.isTXZ(fileName))
-                is = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.LZMA, is);
-            else if (Utils.isTZST(fileName))
-                is = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.ZSTANDARD, is);
-            else if (Utils.isTBR(fileName))
-                is = new CompressorStreamFactory().createCompressorInputStream(CompressorStreamFactory.BROTLI, is);
+            if (compressionOf(type) != null)
+                mCompression = compressionOf(type);
+            else if (!Utils.isOreoOrLater()) {
+                // commons compress needs java.nio, no detection pre-Oreo
+                mCompression = "";
+                Utils.close(bis);
+                return null;
+            } else if (Utils.isTBR(file.getName()))
+                // brotli has no signature, use file name
+                mCompression = CompressorStreamFactory.getBrotli();
+            else
+                // blindly try compression, assume uncompressed if that fails
+                mCompression = CompressorStreamFactory.detect(bis);
+
+            // platform zlib, works pre-Oreo as well
+            if (CompressorStreamFactory.GZIP.equals(mCompression))
+                return new GZIPInputStream(bis);
+            if (!Utils.isOreoOrLater())
+                throw new IOException(mCompression + " tarballs only available on Oreo (API26) or later");
+            return CompressorStreamFactory.getSingleton().createCompressorInputStream(mCompression, bis);
         } catch (CompressorException e) {
-            throw new IOException(e);
+            mCompression = "";
+            Utils.close(bis);
+            return null;
+        } catch (IOException e) {
+            Utils.close(bis);
+            throw e;
         }
-
-        return new TarArchiveInputStream(is, true);
     }
 
-    public void parse() throws IOException {
-        parse(1);
+    private static String compressionOf(Type type) {
+        if (type == null)
+            return null;
+        switch (type) {
+            case TAR_BZIP2:
+                return CompressorStreamFactory.BZIP2;
+            case TAR_GZIP:
+                return CompressorStreamFactory.GZIP;
+            case TAR_LZMA:
+                return CompressorStreamFactory.LZMA;
+            case TAR_XZ:
+                return CompressorStreamFactory.XZ;
+            case TAR_ZSTD:
+                return CompressorStreamFactory.ZSTANDARD;
+        }
+        return null;
     }
 
-    private void parse(int limit) throws IOException {
-        if (mParsedAlready)
+    // blocks until the plain tar is unpacked up to given offset
+    private void awaitUnpacked(long offset) throws IOException {
+        if (mUncompressedFile == null)
             return;
 
-        File file = (File) getSource();
-
-        TarArchiveInputStream tis = null;
-        try {
-            tis = initStream(file);
-            TarArchiveEntry entry;
-            ArrayList entries = new ArrayList<>();
-            while ((entry = tis.getNextTarEntry()) != null) {
-                if (entry.isDirectory()) {
-                    continue;
-                }
-                // TODO: cache to file system instead
-                if (Utils.isImage(entry.getName())) {
-                    boolean read = limit < 0 || entries.size() <= limit;
-                    entries.add(new TarEntry(entry, read ? Utils.toByteArray(tis) : null));
+        synchronized (mUnpackLock) {
+            while (mUnpacked < offset && !mUnpackDone) {
+                try {
+                    mUnpackLock.wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("waiting for tar unpacking");
                 }
             }
+            if (mUnpackError != null)
+                throw new IOException("tar unpacking failed", mUnpackError);
+            if (mUnpacked < offset && offset != Long.MAX_VALUE)
+                throw new EOFException("unexpected end of tar");
+        }
+    }
 
-            Collections.sort(entries, new IgnoreCaseComparator() {
-                @Override
-                public String stringValue(Object o) {
-                    return ((TarEntry) o).entry.getName();
+    /**
+     * Copies the decompressed stream to the plain tar cache file, publishing
+     * progress block by block and collecting page entries on the way.
+     */
+    private class Unpacker implements Runnable {
+        private final InputStream mIn;
+        private final OutputStream mOut;
+        private final List<PageIndex.Entry> mFound = new ArrayList<>();
+
+        public Unpacker(InputStream in, OutputStream out) {
+            mIn = in;
+            mOut = out;
+        }
+
+        public List<PageIndex.Entry> getEntries() {
+            return mFound;
+        }
+
+        @Override
+        public void run() {
+            IOException error = null;
+            try {
+                unpack();
+            } catch (IOException e) {
+                if (!mUnpackCancelled)
+                    Log.e(TAG, "unpacking failed", e);
+                error = e;
+            } finally {
+                Utils.close(mIn);
+                Utils.close(mOut);
+            }
+
+            synchronized (mUnpackLock) {
+                mUnpackDone = true;
+                mUnpackError = error;
+                mUnpackLock.notifyAll();
+            }
+        }
+
+        private void unpack() throws IOException {
+            byte[] header = new byte[BLOCK_SIZE];
+            byte[] buffer = new byte[64 * 1024];
+            HeaderScanner scanner = new HeaderScanner();
+            long position = 0;
+            while (readBlock(mIn, header)) {
+                if (mUnpackCancelled)
+                    throw new InterruptedIOException("unpacking cancelled");
+                mOut.write(header);
+                if (!scanner.next(header, position))
+                    break;
+
+                long dataOffset = position + BLOCK_SIZE;
+                long padded = padToBlock(scanner.size);
+                if (scanner.isExtendedHeader()) {
+                    if (padded > MAX_EXTENDED_HEADER_SIZE)
+                        throw new IOException("invalid extended tar header size " + scanner.size);
+                    byte[] data = new byte[(int) padded];
+                    readFully(mIn, data, data.length);
+                    mOut.write(data);
+                    scanner.extendedHeader(Arrays.copyOf(data, (int) scanner.size));
+                } else {
+                    long copied = 0;
+                    while (copied < padded) {
+                        if (mUnpackCancelled)
+                            throw new InterruptedIOException("unpacking cancelled");
+                        int len = (int) Math.min(buffer.length, padded - copied);
+                        readFully(mIn, buffer, len);
+                        mOut.write(buffer, 0, len);
+                        copied += len;
+                        publish(dataOffset + copied);
+                    }
+                    if (scanner.isPage())
+                        mFound.add(new PageIndex.Entry(scanner.name, -1, dataOffset, scanner.size));
                 }
-            });
+                position = dataOffset + padded;
+                publish(position);
+            }
+        }
+
+        private void publish(long unpacked) {
+            synchronized (mUnpackLock) {
+                mUnpacked = unpacked;
+                mUnpackLock.notifyAll();
+            }
+        }
+    }
+
+    // false at clean end of stream
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int read = in.read(block, 0, block.length);
+        if (read < 0)
+            return false;
+        if (read < block.length)
+            readFully(in, block, read, block.length - read);
+        return true;
+    }
 
-            mEntries = entries;
-            mParsedAlready = true;
+    private static void readFully(InputStream in, byte[] b, int len) throws IOException {
+        readFully(in, b, 0, len);
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int read = in.read(b, off, len);
+            if (read < 0)
+                throw new EOFException("unexpected end of tar");
+            off += read;
+            len -= read;
+        }
+    }
+
+    private static long padToBlock(long size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private static List<PageIndex.Entry> scanEntries(File file) throws IOException {
+        ArrayList<PageIndex.Entry> entries = new ArrayList<>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[BLOCK_SIZE];
+            long length = raf.length();
+            long position = 0;
+            HeaderScanner scanner = new HeaderScanner();
+            while (position + BLOCK_SIZE <= length) {
+                raf.seek(position);
+                raf.readFully(header);
+                if (!scanner.next(header, position))
+                    break;
+
+                long dataOffset = position + BLOCK_SIZE;
+                position = dataOffset + padToBlock(scanner.size);
+
+                if (scanner.isExtendedHeader())
+                    scanner.extendedHeader(readData(raf, dataOffset, scanner.size));
+                else if (scanner.isPage())
+                    entries.add(new PageIndex.Entry(scanner.name, -1, dataOffset, scanner.size));
+            }
         } finally {
-            Utils.close(tis);
+            Utils.close(raf);
         }
 
+        return sortEntries(entries);
+    }
+
+    private static List<PageIndex.Entry> sortEntries(List<PageIndex.Entry> entries) {
+        Collections.sort(entries, new IgnoreCaseComparator() {
+            @Override
+            public String stringValue(Object o) {
+                return ((PageIndex.Entry) o).name;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Walks tar headers one by one. GNU longname and pax headers are reported as
+     * extended headers, their data applies to the following entry.
+     */
+    private static class HeaderScanner {
+        private String mNextName = null;
+        private long mNextSize = -1;
+
+        public byte type;
+        public String name;
+        public long size;
+
+        // false at end of archive marker
+        public boolean next(byte[] header, long position) throws IOException {
+            if (isZeroBlock(header))
+                return false;
+            if (!isChecksumValid(header))
+                throw new IOException("invalid tar header at offset " + position);
+
+            type = header[156];
+            name = headerName(header);
+            size = parseNumber(header, 124, 12);
+            if (!isExtendedHeader()) {
+                if (mNextName != null)
+                    name = mNextName;
+                if (mNextSize >= 0)
+                    size = mNextSize;
+                mNextName = null;
+                mNextSize = -1;
+            }
+            return true;
+        }
+
+        public boolean isExtendedHeader() {
+            return type == 'L' || type == 'K' || type == 'x' || type == 'g';
+        }
+
+        // dirs, links etc. are skipped
+        public boolean isPage() {
+            return (type == '0' || type == 0 || type == '7') && Utils.isImage(name);
+        }
+
+        // everything but longname and pax path/size (e.g. global headers) is ignored
+        public void extendedHeader(byte[] data) throws IOException {
+            if (type == 'L') {
+                mNextName = TarParser.toString(data, 0, data.length);
+            } else if (type == 'x') {
+                Map<String, String> pax = parsePaxHeaders(data);
+                if (pax.containsKey("path"))
+                    mNextName = pax.get("path");
+                try {
+                    if (pax.containsKey("size"))
+                        mNextSize = Long.parseLong(pax.get("size"));
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid pax size", e);
+                }
+            }
+        }
+    }
+
+    // used by the file type detection for tars without ustar magic
+    static boolean isTarHeader(byte[] header) {
+        return !isZeroBlock(header) && isChecksumValid(header);
+    }
+
+    private static boolean isZeroBlock(byte[] header) {
+        for (byte b : header) {
+            if (b != 0)
+                return false;
+        }
+        return true;
+    }
+
+    // chksum field counts as spaces, some old tars summed signed bytes
+    private static boolean isChecksumValid(byte[] header) {
+        long stored = parseNumber(header, 148, 8);
+        long unsigned = 0, signed = 0;
+        for (int i = 0; i < header.length; i++) {
+            byte b = (i >= 148 && i < 156) ? (byte) ' ' : header[i];
+            unsigned += b & 0xff;
+            signed += b;
+        }
+        return stored == unsigned || stored == signed;
+    }
+
+    private static String headerName(byte[] header) throws IOException {
+        String name = toString(header, 0, 100);
+        // posix ustar ("ustar\0"), GNU ("ustar ") uses the prefix area otherwise
+        boolean isUstar = header[257] == 'u' && header[258] == 's' && header[259] == 't' &&
+                header[260] == 'a' && header[261] == 'r' && header[262] == 0;
+        if (isUstar) {
+            String prefix = toString(header, 345, 155);
+            if (!prefix.isEmpty())
+                name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    // octal, or GNU base-256 for large values
+    private static long parseNumber(byte[] header, int offset, int length) {
+        long result = 0;
+        if ((header[offset] & 0x80) != 0) {
+            for (int i = offset + 1; i < offset + length; i++) {
+                result = (result << 8) | (header[i] & 0xff);
+            }
+            return result;
+        }
+
+        int i = offset, end = offset + length;
+        while (i < end && (header[i] == ' ' || header[i] == 0))
+            i++;
+        for (; i < end && header[i] >= '0' && header[i] <= '7'; i++) {
+            result = (result << 3) + (header[i] - '0');
+        }
+        return result;
+    }
+
+    // NUL terminated string
+    private static String toString(byte[] data, int offset, int length) throws IOException {
+        int end = offset;
+        while (end < offset + length && data[end] != 0)
+            end++;
+        return new String(data, offset, end - offset, "UTF-8");
+    }
+
+    private static byte[] readData(RandomAccessFile raf, long offset, long size) throws IOException {
+        if (size < 0 || size > MAX_EXTENDED_HEADER_SIZE)
+            throw new IOException("invalid extended tar header size " + size);
+        byte[] data = new byte[(int) size];
+        raf.seek(offset);
+        raf.readFully(data);
+        return data;
+    }
+
+    // records look like "<length> <key>=<value>\n", length in bytes including itself
+    private static Map<String, String> parsePaxHeaders(byte[] data) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int position = 0;
+        while (position < data.length) {
+            int space = position;
+            while (space < data.length && data[space] != ' ')
+                space++;
+            if (space >= data.length)
+                break;
+            int length = Integer.parseInt(new String(data, position, space - position, "US-ASCII"));
+            int end = position + length;
+            if (length <= 0 || end > data.length)
+                throw new IOException("invalid pax header");
+            // strip trailing newline
+            String record = new String(data, space + 1, end - space - 2, "UTF-8");
+            int equals = record.indexOf('=');
+            if (equals > 0)
+                headers.put(record.substring(0, equals), record.substring(equals + 1));
+            position = end;
+        }
+        return headers;
     }
 
     @Override
     public int numPages() throws IOException {
-        parse(0);
+        parse();
         return mEntries != null ? mEntries.size() : 0;
     }
 
     @Override
-    public synchronized InputStream getPage(int num) throws IOException {
-        synchronized (mEntries) {
-            byte[] data = mEntries.get(num).bytes;
-            // (re)read archive data to memory
-            if (data == null) {
-                mParsedAlready = false;
-                parse(-1);
-            }
-        }
-        return new ByteArrayInputStream(mEntries.get(num).bytes);
+    public InputStream getPage(int num) throws IOException {
+        parse();
+        PageIndex.Entry entry = mEntries.get(num);
+        // compressed? wait only for this very page
+        awaitUnpacked(entry.offset + entry.size);
+        return new RegionInputStream(mChannel, entry.offset, entry.size);
+    }
+
+    @Override
+    public ByteBuffer getPageBuffer(int num) throws IOException {
+        parse();
+        PageIndex.Entry entry = mEntries.get(num);
+        awaitUnpacked(entry.offset + entry.size);
+        return mChannel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.size);
+    }
+
+    @Override
+    public Map getPageMetaData(int num) throws IOException {
+        parse();
+        Map m = new HashMap<>();
+        m.put(Parser.PAGEMETADATA_KEY_NAME, mEntries.get(num).name);
+        m.put(Parser.PAGEMETADATA_KEY_SIZE, mEntries.get(num).size);
+        return m;
+    }
+
+    // compressed tarballs would be unpacked as a whole
+    @Override
+    public boolean canProbePages() throws IOException {
+        parse();
+        return mCompression.isEmpty();
     }
 
     @Override
     public String getType() {
-        return "tar";
+        return "tar" + (mCompression.isEmpty() ? "" : "+" + mCompression);
     }
 
     @Override
     public void destroy() {
-        // delete all cached but cover page (0)
-        for (int i = 1; i < mEntries.size(); i++) {
-            mEntries.get(i).bytes = null;
+        // stop unpacking first, parse() might be waiting for it
+        mUnpackCancelled = true;
+        synchronized (this) {
+            Utils.close(mChannel);
+            Utils.close(mRandomAccessFile);
+            mChannel = null;
+            mRandomAccessFile = null;
+            mEntries = null;
+            if (mUncompressedFile != null) {
+                Utils.rmDir(mUncompressedFile.getParentFile());
+                mUncompressedFile = null;
+            }
         }
-        mParsedAlready = false;
     }
 
+    /**
+     * Reads a region of the shared channel using positional reads, which leave
+     * the channel position alone, so any number of pages can be read in parallel.
+     */
+    private static class RegionInputStream extends InputStream {
+        private final FileChannel mChannel;
+        private final long mEnd;
+        private long mPosition;
+        private long mMark;
+
+        public RegionInputStream(FileChannel channel, long offset, long length) {
+            mChannel = channel;
+            mPosition = offset;
+            mMark = offset;
+            mEnd = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (mPosition >= mEnd)
+                return -1;
+            len = (int) Math.min(len, mEnd - mPosition);
+            int read = mChannel.read(ByteBuffer.wrap(b, off, len), mPosition);
+            if (read < 0)
+                throw new EOFException("unexpected end of tar");
+            mPosition += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, mEnd - mPosition));
+            mPosition += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, mEnd - mPosition);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mMark = mPosition;
+        }
+
+        @Override
+        public synchronized void reset() {
+            mPosition = mMark;
+        }
+    }
 }
@@ -27,6 +27,23 @@ public class ZipParser extends AbstractParser {
         File file = (File) getSource();
 
         mZipFile = new ZipFile(file.getAbsolutePath());
+
+        // reopened? skip listing and sorting
+        PageIndex pageIndex = loadPageIndex();
+        if (pageIndex != null) {
+            ArrayList<ZipEntry> entries = new ArrayList<>(pageIndex.size());
+            for (PageIndex.Entry entry : pageIndex.getEntries()) {
+                ZipEntry ze = mZipFile.getEntry(entry.name);
+                if (ze == null)
+                    break;
+                entries.add(ze);
+            }
+            if (entries.size() == pageIndex.size()) {
+                mEntries = entries;
+                return;
+            }
+        }
+
         mEntries = new ArrayList<ZipEntry>();
 
         Enumeration<? extends ZipEntry> e = mZipFile.entries();
@@ -43,6 +60,14 @@ public class ZipParser extends AbstractParser {
                 return ((ZipEntry) o).getName();
             }
         });
+
+        pageIndex = createPageIndex();
+        if (pageIndex != null) {
+            for (ZipEntry ze : mEntries) {
+                pageIndex.add(ze.getName(), -1, -1, ze.getSize());
+            }
+            pageIndex.save();
+        }
     }
 
     @Override
@@ -63,9 +88,17 @@ public class ZipParser extends AbstractParser {
         parse();
         Map m = new HashMap();
         m.put(Parser.PAGEMETADATA_KEY_NAME,mEntries.get(num).getName());
+        if (mEntries.get(num).getSize() >= 0)
+            m.put(Parser.PAGEMETADATA_KEY_SIZE,mEntries.get(num).getSize());
         return m;
     }
 
+    // entries inflate lazily, a header read inflates little more than the header
+    @Override
+    public boolean canProbePages() {
+        return true;
+    }
+
     @Override
     public String getType() {
         return "Zip";
@@ -1,6 +1,7 @@
 package com.nkanaev.comics.view;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.RectF;
@@ -29,6 +30,9 @@ public class PageImageView extends androidx.appcompat.widget.AppCompatImageView
     private float mOriginalScale;
     private float[] m = new float[9];
     private Matrix mMatrix;
+    private TileLayer mTileLayer;
+    // pinch or zoom animation in progress, tiles are decoded once it is over
+    private boolean mZooming = false;
 
     public PageImageView(Context context) {
         super(context);
@@ -58,10 +62,41 @@ public class PageImageView extends androidx.appcompat.widget.AppCompatImageView
     @Override
     public void setImageDrawable(Drawable drawable) {
         super.setImageDrawable(drawable);
+        // tiles belong to the previous page
+        setTileSource(null);
         mSkipScaling = false;
         scale();
     }
 
+    // full resolution source of the current drawable, tiles are drawn where it falls short
+    public void setTileSource(TileLayer.Source source) {
+        if (mTileLayer != null)
+            mTileLayer.close();
+        mTileLayer = source != null ? new TileLayer(this, source) : null;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        Drawable drawable = getDrawable();
+        if (mTileLayer == null || drawable == null)
+            return;
+
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        mTileLayer.draw(canvas, mMatrix, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight(),
+                getWidth() - getPaddingLeft() - getPaddingRight(),
+                getHeight() - getPaddingTop() - getPaddingBottom(), !mZooming);
+        canvas.restore();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        setTileSource(null);
+        super.onDetachedFromWindow();
+    }
+
     private void init() {
         mMatrix = new Matrix();
         setScaleType(ScaleType.MATRIX);
@@ -164,7 +199,27 @@ public class PageImageView extends androidx.appcompat.widget.AppCompatImageView
         super.postInvalidate();
     }
 
+    private void setZooming(boolean zooming) {
+        if (mZooming == zooming)
+            return;
+        mZooming = zooming;
+        // settled, redraw to fetch tiles at the final scale
+        if (!zooming)
+            invalidate();
+    }
+
     private class PrivateScaleDetector extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector) {
+            setZooming(true);
+            return true;
+        }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector) {
+            setZooming(false);
+        }
+
         @Override
         public boolean onScale(ScaleGestureDetector detector) {
             mMatrix.getValues(m);
@@ -368,6 +423,7 @@ public class PageImageView extends androidx.appcompat.widget.AppCompatImageView
             mInterpolator = new AccelerateDecelerateInterpolator();
             mStartScale = getCurrentScale();
             mStartTime = System.currentTimeMillis();
+            setZooming(true);
         }
 
         @Override
@@ -392,6 +448,7 @@ public class PageImageView extends androidx.appcompat.widget.AppCompatImageView
                 mMatrix.setScale(mScale, mScale);
                 mMatrix.postTranslate(m[Matrix.MTRANS_X], m[Matrix.MTRANS_Y]);
                 setImageMatrix(mMatrix);
+                setZooming(false);
             }
         }
     }
@@ -15,6 +15,15 @@ public class PreCachingGridLayoutManager extends GridLayoutManager {
         this.extraLayoutSpace = extraLayoutSpace;
     }
 
+    // position is laid out ahead in the extra space, not (yet) on screen
+    public boolean isPrefetchPosition(int position) {
+        int first = findFirstVisibleItemPosition();
+        int last = findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION)
+            return false;
+        return position < first || position > last;
+    }
+
     @Override
     protected int getExtraLayoutSpace(RecyclerView.State state) {
         if (extraLayoutSpace > 0) {
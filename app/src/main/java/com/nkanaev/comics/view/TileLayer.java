@@ -0,0 +1,356 @@
+package com.nkanaev.comics.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.View;
+import com.nkanaev.comics.MainApplication;
+import com.nkanaev.comics.managers.DecodeScheduler;
+import com.nkanaev.comics.managers.Utils;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Draws full resolution tiles of a page over its (reduced) base bitmap. Only
+ * tiles visible in the view are decoded, subsampled to the current zoom, on
+ * shared background workers. Tiles of all pages share one byte bounded LRU.
+ * Everything but decoding happens on the ui thread.
+ */
+public class TileLayer {
+    private static final String TAG = "TileLayer";
+    // in screen pixels, tiles cover TILE_SIZE * sampleSize source pixels
+    private static final int TILE_SIZE = 512;
+    private static final int WORKERS = 2;
+
+    public interface Source {
+        // called on a worker thread, false if the page can't be decoded by region
+        boolean open() throws IOException;
+
+        // full resolution dimensions, valid after open()
+        int getWidth();
+
+        int getHeight();
+
+        // called on worker threads
+        Bitmap decodeRegion(Rect region, int sampleSize) throws IOException;
+
+        void close();
+    }
+
+    private static ExecutorService mExecutor = null;
+    private static LruCache<Tile, Bitmap> mCache = null;
+
+    private enum State {
+        NEW, OPENING, READY, UNUSABLE, CLOSED
+    }
+
+    private final View mView;
+    private final Source mSource;
+    private State mState = State.NEW;
+    private int mWidth, mHeight;
+    // tiles queued or decoding
+    private final Set<Tile> mPending = new HashSet<>();
+    // tiles visible on last draw, workers skip all others
+    private volatile Set<Tile> mWanted = Collections.emptySet();
+    // some tiles of this layer may be in the cache
+    private boolean mHasTiles = false;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mSourceMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisible = new RectF();
+    private final RectF mTileRect = new RectF();
+    private final float[] m = new float[9];
+
+    public TileLayer(View view, Source source) {
+        mView = view;
+        mSource = source;
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+                            r.run();
+                        }
+                    }, TAG);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return mExecutor;
+    }
+
+    private static LruCache<Tile, Bitmap> getCache() {
+        if (mCache == null) {
+            // an eighth of the heap, but enough to cover the screen a few times over
+            DisplayMetrics dm = MainApplication.getAppContext().getResources().getDisplayMetrics();
+            long screen = 4L * dm.widthPixels * dm.heightPixels;
+            long heap = 1024L * Utils.getHeapSize(MainApplication.getAppContext());
+            int maxSize = (int) Math.min(Integer.MAX_VALUE, Math.max(heap / 8, 3 * screen));
+            mCache = new LruCache<Tile, Bitmap>(maxSize) {
+                @Override
+                protected int sizeOf(Tile key, Bitmap value) {
+                    return Utils.calculateBitmapSize(value);
+                }
+
+                @Override
+                protected void entryRemoved(boolean evicted, Tile key, Bitmap oldValue, Bitmap newValue) {
+                    if (oldValue != newValue)
+                        oldValue.recycle();
+                }
+            };
+        }
+        return mCache;
+    }
+
+    // matrix maps base bitmap to view coordinates, while zooming (settled false) only
+    // tiles at hand are drawn, decoding waits for the final zoom level
+    public void draw(Canvas canvas, Matrix matrix, int baseWidth, int baseHeight, int viewWidth, int viewHeight,
+                     boolean settled) {
+        if (mState == State.NEW) {
+            open(baseWidth, baseHeight);
+            return;
+        }
+        if (mState != State.READY || baseWidth <= 0)
+            return;
+
+        // base pixels and view pixels per source pixel
+        float baseScale = (float) baseWidth / mWidth;
+        matrix.getValues(m);
+        float viewScale = m[Matrix.MSCALE_X] * baseScale;
+        int sampleSize = 1;
+        while (sampleSize * 2 * viewScale <= 1f)
+            sampleSize *= 2;
+
+        // zoomed out far enough for the base to show all there is, free the detail
+        if (baseScale * sampleSize >= 1f) {
+            if (settled)
+                dropTiles();
+            return;
+        }
+
+        mSourceMatrix.set(matrix);
+        mSourceMatrix.preScale(baseScale, baseScale);
+        if (!mSourceMatrix.invert(mInverse))
+            return;
+        mVisible.set(0, 0, viewWidth, viewHeight);
+        mInverse.mapRect(mVisible);
+        if (!mVisible.intersect(0, 0, mWidth, mHeight))
+            return;
+
+        canvas.save();
+        canvas.concat(mSourceMatrix);
+        if (!settled) {
+            // neighbour levels bridge the gap until the zoom settles, finer on top
+            if (baseScale * sampleSize * 2 < 1f)
+                drawLevel(canvas, sampleSize * 2, null);
+            if (sampleSize > 1)
+                drawLevel(canvas, sampleSize / 2, null);
+            drawLevel(canvas, sampleSize, null);
+            canvas.restore();
+            mWanted = Collections.emptySet();
+            return;
+        }
+        Set<Tile> wanted = new HashSet<>();
+        drawLevel(canvas, sampleSize, wanted);
+        canvas.restore();
+
+        mWanted = wanted;
+        for (Tile tile : wanted) {
+            if (mPending.add(tile))
+                getExecutor().execute(new DecodeTask(tile));
+        }
+    }
+
+    // draws cached visible tiles of one level, collects missing ones in wanted
+    private void drawLevel(Canvas canvas, int sampleSize, Set<Tile> wanted) {
+        int span = TILE_SIZE * sampleSize;
+        int firstCol = (int) (mVisible.left / span);
+        int lastCol = (int) Math.ceil(mVisible.right / span) - 1;
+        int firstRow = (int) (mVisible.top / span);
+        int lastRow = (int) Math.ceil(mVisible.bottom / span) - 1;
+
+        LruCache<Tile, Bitmap> cache = getCache();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Tile tile = new Tile(this, sampleSize, col, row);
+                Bitmap bitmap = cache.get(tile);
+                if (bitmap != null && !bitmap.isRecycled()) {
+                    mTileRect.set(tile.getRect());
+                    canvas.drawBitmap(bitmap, null, mTileRect, mPaint);
+                } else if (wanted != null) {
+                    wanted.add(tile);
+                }
+            }
+        }
+    }
+
+    private void dropTiles() {
+        mWanted = Collections.emptySet();
+        if (!mHasTiles)
+            return;
+        mHasTiles = false;
+        LruCache<Tile, Bitmap> cache = getCache();
+        for (Tile tile : cache.snapshot().keySet()) {
+            if (tile.layer == this)
+                cache.remove(tile);
+        }
+    }
+
+    private void open(final int baseWidth, final int baseHeight) {
+        mState = State.OPENING;
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean usable = false;
+                try {
+                    usable = mSource.open();
+                } catch (Exception e) {
+                    Log.d(TAG, "open", e);
+                }
+                final boolean opened = usable;
+                mView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mState != State.OPENING)
+                            return;
+                        int width = mSource.getWidth();
+                        int height = mSource.getHeight();
+                        // tiles must add detail and line up with the base
+                        if (!opened || width <= baseWidth ||
+                                Math.abs((float) baseWidth / width - (float) baseHeight / height) > 0.01f) {
+                            mState = State.UNUSABLE;
+                            closeSource();
+                            return;
+                        }
+                        mWidth = width;
+                        mHeight = height;
+                        mState = State.READY;
+                        mView.invalidate();
+                    }
+                });
+            }
+        });
+    }
+
+    public void close() {
+        if (mState == State.CLOSED)
+            return;
+        boolean wasOpen = mState != State.UNUSABLE;
+        mState = State.CLOSED;
+        mPending.clear();
+        dropTiles();
+        if (wasOpen)
+            closeSource();
+    }
+
+    // decodes may be running, close after them
+    private void closeSource() {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                mSource.close();
+            }
+        });
+    }
+
+    private class DecodeTask implements Runnable {
+        private final Tile mTile;
+
+        DecodeTask(Tile tile) {
+            mTile = tile;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            // scrolled or zoomed away meanwhile
+            final boolean skipped = !mWanted.contains(mTile);
+            if (!skipped) {
+                // detail of the page on screen
+                DecodeScheduler scheduler = DecodeScheduler.getInstance();
+                try {
+                    scheduler.acquire(DecodeScheduler.LANE_VISIBLE_PAGE);
+                    try {
+                        bitmap = mSource.decodeRegion(mTile.getRect(), mTile.sampleSize);
+                    } finally {
+                        scheduler.release();
+                    }
+                } catch (Exception e) {
+                    Log.d(TAG, "decodeRegion", e);
+                }
+            }
+
+            final Bitmap result = bitmap;
+            mView.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPending.remove(mTile);
+                    if (result == null) {
+                        // back in view before the skip got here
+                        if (skipped && mState == State.READY)
+                            mView.invalidate();
+                        return;
+                    }
+                    if (mState != State.READY) {
+                        result.recycle();
+                        return;
+                    }
+                    getCache().put(mTile, result);
+                    mHasTiles = true;
+                    mView.invalidate();
+                }
+            });
+        }
+    }
+
+    private static class Tile {
+        final TileLayer layer;
+        final int sampleSize, col, row;
+
+        Tile(TileLayer layer, int sampleSize, int col, int row) {
+            this.layer = layer;
+            this.sampleSize = sampleSize;
+            this.col = col;
+            this.row = row;
+        }
+
+        // source pixels covered
+        Rect getRect() {
+            int span = TILE_SIZE * sampleSize;
+            return new Rect(col * span, row * span,
+                    Math.min((col + 1) * span, layer.mWidth), Math.min((row + 1) * span, layer.mHeight));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tile))
+                return false;
+            Tile t = (Tile) o;
+            return t.layer == layer && t.sampleSize == sampleSize && t.col == col && t.row == row;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(layer), sampleSize, col, row);
+        }
+    }
+}